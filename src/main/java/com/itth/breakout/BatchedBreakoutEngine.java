@@ -0,0 +1,233 @@
+package com.itth.breakout;
+
+import java.util.Random;
+
+import static com.itth.breakout.BreakoutEngine.*;
+
+/**
+ Any number of Breakout games stepped together, their state held as one primitive array per field.
+
+ <p>The rules are the ones of {@link BreakoutEngine}, which is this engine with a single game. Stepping all games
+ is one pass over the arrays without allocation, thus filling a replay buffer runs at memory speed instead of one
+ game at a time.
+ */
+public class BatchedBreakoutEngine {
+	/** Bounds the bounces within one step, e.g. in a corner. */
+	private static final int MAX_CONTACTS = 8;
+	private static final int NONE = 0;
+	private static final int WALL = 1;
+	private static final int CEILING = 2;
+	private static final int PADDLE = 3;
+	private final double[] ballVelocityX;
+	private final double[] ballVelocityY;
+	private final double[] ballX;
+	private final double[] ballY;
+	private final double[] paddleX;
+	private final Random random;
+	private final int[] score;
+	private final int size;
+	private double dt = DT;
+
+	public BatchedBreakoutEngine(int size) {
+		this(size, new Random());
+	}
+
+	public BatchedBreakoutEngine(int size, Random random) {
+		this.size = size;
+		this.random = random;
+		ballX = new double[size];
+		ballY = new double[size];
+		ballVelocityX = new double[size];
+		ballVelocityY = new double[size];
+		paddleX = new double[size];
+		score = new int[size];
+		for (int i = 0; i < size; i++) {
+			reset(i);
+		}
+	}
+
+	/**
+	 Starts a new game, the ball falls from the top center with a random horizontal velocity.
+	 */
+	public void reset(int game) {
+		ballVelocityX[game] = random.nextDouble() * 200 - 100;
+		ballVelocityY[game] = VELOCITY;
+		ballX[game] = SCENE_WIDTH / 2D;
+		ballY[game] = BALL_RADIUS;
+		paddleX[game] = SCENE_WIDTH / 2D - PADDLE_WIDTH / 2;
+		score[game] = 0;
+	}
+
+	/**
+	 Advances every game which is not done by one time step.
+
+	 <p>The ball is swept over the step: the earliest time of impact with a wall, the ceiling or the top of the paddle
+	 is solved for, the ball moved there and bounced, and the rest of the step continues from the contact. Thus the
+	 ball cannot tunnel through the paddle and outcomes stay the same for time steps well above {@link
+	 BreakoutEngine#DT}.
+
+	 @param moves per game 0 keeps the paddle, 1 moves it left and 2 right by {@link BreakoutEngine#PADDLE_SPEED}
+	 */
+	public void step(int[] moves) {
+		final double paddleStep = PADDLE_SPEED * dt;
+		for (int i = 0; i < size; i++) {
+			if (isDone(i)) {
+				continue;
+			}
+			final int move = moves[i];
+			if (move == 1) {
+				paddleX[i] = Math.max(0, paddleX[i] - paddleStep);
+			} else if (move == 2) {
+				paddleX[i] = Math.min(SCENE_WIDTH - PADDLE_WIDTH, paddleX[i] + paddleStep);
+			}
+			sweep(i, dt);
+		}
+	}
+
+	/**
+	 Moves the ball of a game for the given time, bouncing at every contact on the way.
+	 */
+	private void sweep(int i, double time) {
+		final double paddle = paddleX[i];
+		double x = ballX[i];
+		double y = ballY[i];
+		double vx = ballVelocityX[i];
+		double vy = ballVelocityY[i];
+		for (int contact = 0; contact < MAX_CONTACTS && time > 0; contact++) {
+			// Time of impact of every surface the ball moves towards, 0 if it already touches it
+			double impact = Double.POSITIVE_INFINITY;
+			int surface = NONE;
+			if (vx < 0) {
+				impact = Math.max(0, (BALL_RADIUS - x) / vx);
+				surface = WALL;
+			} else if (vx > 0) {
+				impact = Math.max(0, (SCENE_WIDTH - BALL_RADIUS - x) / vx);
+				surface = WALL;
+			}
+			if (vy < 0) {
+				final double ceiling = Math.max(0, (BALL_RADIUS - y) / vy);
+				if (ceiling < impact) {
+					impact = ceiling;
+					surface = CEILING;
+				}
+			} else if (vy > 0 && y - BALL_RADIUS <= PADDLE_Y + PADDLE_HEIGHT) {
+				final double top = Math.max(0, (PADDLE_Y - BALL_RADIUS - y) / vy);
+				final double hitX = x + vx * top;
+				if (top < impact && top <= time && hitX + BALL_RADIUS >= paddle && hitX - BALL_RADIUS <= paddle + PADDLE_WIDTH) {
+					impact = top;
+					surface = PADDLE;
+				}
+			}
+			if (impact > time) {
+				x += vx * time;
+				y += vy * time;
+				break;
+			}
+			x += vx * impact;
+			y += vy * impact;
+			time -= impact;
+			if (surface == WALL) {
+				vx = -vx;
+			} else if (surface == CEILING) {
+				vy = -vy;
+			} else {
+				// Between -1 on the left and 1 on the right end of the paddle
+				final double proportion = Math.max(-1, Math.min(1, (x - (paddle + PADDLE_WIDTH / 2)) / (PADDLE_WIDTH / 2)));
+				vx = proportion * VELOCITY;
+				vy = -vy;
+				if (++score[i] == WINNING_SCORE) {
+					break;
+				}
+			}
+		}
+		ballX[i] = x;
+		ballY[i] = y;
+		ballVelocityX[i] = vx;
+		ballVelocityY[i] = vy;
+	}
+
+	/**
+	 Writes the observation of {@link BreakoutEnv} of every game, the sign of the paddle center minus the ball.
+	 */
+	public void observe(float[] observations) {
+		for (int i = 0; i < size; i++) {
+			observations[i] = Integer.signum((int)(paddleX[i] + PADDLE_WIDTH / 2 - ballX[i]));
+		}
+	}
+
+	/**
+	 The game ends when the ball reached the bottom or the paddle hit it {@link BreakoutEngine#WINNING_SCORE} times.
+	 */
+	public boolean isDone(int game) {
+		return ballY[game] + BALL_RADIUS >= SCENE_HEIGHT || score[game] == WINNING_SCORE;
+	}
+
+	/**
+	 Returns the simulated seconds per step.
+	 */
+	public double getDt() {
+		return dt;
+	}
+
+	/**
+	 Sets the simulated seconds per step, the swept collision keeps outcomes up to about 50 times {@link
+	 BreakoutEngine#DT}.
+	 */
+	public void setDt(double dt) {
+		this.dt = dt;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public double getBallX(int game) {
+		return ballX[game];
+	}
+
+	public double getBallY(int game) {
+		return ballY[game];
+	}
+
+	public double getBallVelocityX(int game) {
+		return ballVelocityX[game];
+	}
+
+	public double getBallVelocityY(int game) {
+		return ballVelocityY[game];
+	}
+
+	/**
+	 Returns the left edge of the paddle.
+	 */
+	public double getPaddleX(int game) {
+		return paddleX[game];
+	}
+
+	public int getScore(int game) {
+		return score[game];
+	}
+
+	/**
+	 Chooses the moves of all games at once, so a network can score them in one batch.
+	 */
+	public interface Policy {
+
+		/**
+		 @param observations the observation of every game
+		 @param moves        receives the move of every game
+		 */
+		void act(float[] observations, int[] moves);
+
+		/**
+		 Moves uniformly at random, e.g. to fill a replay buffer before training.
+		 */
+		static Policy random(Random random) {
+			return (observations, moves) -> {
+				for (int i = 0; i < moves.length; i++) {
+					moves[i] = random.nextInt(3);
+				}
+			};
+		}
+	}
+}
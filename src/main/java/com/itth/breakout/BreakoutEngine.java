@@ -0,0 +1,102 @@
+package com.itth.breakout;
+
+import java.util.Random;
+
+/**
+ The Breakout game without any UI, advanced by a fixed time step on the caller's thread. It is a
+ {@link BatchedBreakoutEngine} of a single game, which also holds the rules.
+
+ <p>One {@link #step(int)} moves the paddle by the action and the ball by {@link #DT} by default, the same as one
+ input and one 1 ms frame of the former JavaFX timeline, so training runs as fast as the CPU allows and every
+ observation belongs to exactly one step. The {@link Breakout} application only renders the state, it reads the
+ fields without synchronization while the trainer steps, a frame may mix two steps which is fine for drawing.
+ */
+public class BreakoutEngine {
+	public static final double BALL_RADIUS = 5;
+	public static final double PADDLE_WIDTH = 80;
+	public static final double PADDLE_HEIGHT = 10;
+	public static final int SCENE_WIDTH = 400;
+	public static final int SCENE_HEIGHT = 400;
+	public static final int VELOCITY = 400;
+	/** The simulated seconds per step. */
+	public static final double DT = 0.001;
+	/** The paddle pixels per simulated second, one pixel per {@link #DT}. */
+	public static final double PADDLE_SPEED = 1000;
+	public static final double PADDLE_Y = SCENE_HEIGHT - PADDLE_HEIGHT * 2;
+	public static final int WINNING_SCORE = 10;
+	private final BatchedBreakoutEngine game;
+	private final int[] moves = new int[1];
+
+	public BreakoutEngine() {
+		this(new Random());
+	}
+
+	public BreakoutEngine(Random random) {
+		game = new BatchedBreakoutEngine(1, random);
+	}
+
+	/**
+	 Starts a new game, the ball falls from the top center with a random horizontal velocity.
+	 */
+	public void reset() {
+		game.reset(0);
+	}
+
+	/**
+	 Advances the game by one time step, does nothing once it is done.
+
+	 @param move 0 keeps the paddle, 1 moves it left and 2 right by {@link #PADDLE_SPEED}
+	 */
+	public void step(int move) {
+		moves[0] = move;
+		game.step(moves);
+	}
+
+	/**
+	 The game ends when the ball reached the bottom or the paddle hit it {@link #WINNING_SCORE} times.
+	 */
+	public boolean isDone() {
+		return game.isDone(0);
+	}
+
+	/**
+	 Returns the simulated seconds per step.
+	 */
+	public double getDt() {
+		return game.getDt();
+	}
+
+	/**
+	 Sets the simulated seconds per step, see {@link BatchedBreakoutEngine#setDt(double)}.
+	 */
+	public void setDt(double dt) {
+		game.setDt(dt);
+	}
+
+	public double getBallX() {
+		return game.getBallX(0);
+	}
+
+	public double getBallY() {
+		return game.getBallY(0);
+	}
+
+	public double getBallVelocityX() {
+		return game.getBallVelocityX(0);
+	}
+
+	public double getBallVelocityY() {
+		return game.getBallVelocityY(0);
+	}
+
+	/**
+	 Returns the left edge of the paddle.
+	 */
+	public double getPaddleX() {
+		return game.getPaddleX(0);
+	}
+
+	public int getScore() {
+		return game.getScore(0);
+	}
+}
@@ -1,30 +1,77 @@
 package com.itth.breakout;
 
-import java.time.Duration;
-
 import ai.djl.modality.rl.ActionSpace;
-import ai.djl.modality.rl.LruReplayBuffer;
-import ai.djl.modality.rl.ReplayBuffer;
 import ai.djl.modality.rl.env.RlEnv;
 import ai.djl.ndarray.BaseNDManager;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
-import com.itth.os.realtimechart.RealTimeChart;
-import com.itth.os.realtimechart.RealTimeChart.RealTimeEvent;
-
-public class BreakoutEnv implements RlEnv {
+import com.codahale.metrics.Timer;
+import com.itth.moonlander.metrics.ChartSink;
+import com.itth.moonlander.metrics.EpisodeStats;
+import com.itth.moonlander.metrics.NDMemoryTracker;
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
+import com.itth.moonlander.training.OutcomeEnv;
+import com.itth.moonlander.training.PackedReplayBuffer;
+import com.itth.moonlander.training.ResizableReplayBuffer;
+
+public class BreakoutEnv implements OutcomeEnv {
+  private static final Timer sampleTimer = TrainingMetrics.timer(TrainingMetrics.REPLAY_SAMPLE);
+  private static final Timer stepTimer = TrainingMetrics.timer(TrainingMetrics.ENV_STEP);
+  // Scaled, the chart shows millis and the rewards are fractions
+  private static final ChartSink.Series REWARD_CHART = ChartSink.getDefault().series("Reward", 100);
+  /** The packed reward is a 16 bit fixed point number of this many steps per unit. */
+  private static final float REWARD_SCALE = 1 << 12;
   protected final NDManager manager;
   private final ActionSpace actionSpace;
-  private final Breakout breakout;
-  private final ReplayBuffer replayBuffer;
+  private final BreakoutEngine engine;
+  private final PackedReplayBuffer packedReplay;
+  private final ResizableReplayBuffer replayBuffer;
   private State state;
+  private NDList observation;
+  private NDManager observationManager;
+  private NDMemoryTracker memoryTracker;
+  private int episode;
+  private int episodeSteps;
 
   public BreakoutEnv(Breakout breakout, BaseNDManager manager, final int batchSize, final int bufferSize) {
-    this.breakout = breakout;
+    this(breakout.getEngine(), manager, batchSize, bufferSize, false);
+  }
+
+  /**
+   * Constructs a {@link BreakoutEnv} playing the game of the given UI.
+   *
+   * @param packed whether to keep the replay in a {@link PackedReplayBuffer}
+   */
+  public BreakoutEnv(Breakout breakout, BaseNDManager manager, final int batchSize, final int bufferSize, boolean packed) {
+    this(breakout.getEngine(), manager, batchSize, bufferSize, packed);
+  }
+
+  /**
+   * Constructs a {@link BreakoutEnv} without UI, stepped on the caller's thread.
+   */
+  public BreakoutEnv(BreakoutEngine engine, BaseNDManager manager, final int batchSize, final int bufferSize) {
+    this(engine, manager, batchSize, bufferSize, false);
+  }
+
+  /**
+   * Constructs a {@link BreakoutEnv} without UI, stepped on the caller's thread.
+   *
+   * @param packed whether to keep the replay in a {@link PackedReplayBuffer}, the observations and actions take a
+   *     few bits thus a transition takes 4 bytes instead of a step with its arrays
+   */
+  public BreakoutEnv(BreakoutEngine engine, BaseNDManager manager, final int batchSize, final int bufferSize, boolean packed) {
+    this.engine = engine;
     this.manager = manager;
-    replayBuffer = new LruReplayBuffer(batchSize, bufferSize);
-    state = State.of(breakout);
+    if (packed) {
+      packedReplay = new PackedReplayBuffer(batchSize, bufferSize, new Codec(), manager);
+      replayBuffer = null;
+    } else {
+      packedReplay = null;
+      replayBuffer = new ResizableReplayBuffer(batchSize, bufferSize);
+    }
+    state = State.of(engine);
     actionSpace = new ActionSpace();
     actionSpace.add(new NDList(manager.create(0F)));
     actionSpace.add(new NDList(manager.create(1F)));
@@ -32,58 +79,338 @@ public class BreakoutEnv implements RlEnv {
   }
 
   public void reset() {
-    breakout.reset();
-    state = State.of(breakout);
+    engine.reset();
+    state = State.of(engine);
+    observation = null;
+    episodeSteps = 0;
+    episode++;
+  }
+
+  /**
+   * Samples the allocation sites of the step managers for leak hunting.
+   */
+  public void setMemoryTracker(NDMemoryTracker memoryTracker) {
+    this.memoryTracker = memoryTracker;
+  }
+
+  /**
+   * Returns the number of steps taken since the last reset.
+   */
+  public int getEpisodeSteps() {
+    return episodeSteps;
   }
 
+  /**
+   * Returns the observation of the current state, freed once the state changed and the next one is observed.
+   */
   public NDList getObservation() {
-    return state.createObservation(manager);
+    if (observation == null) {
+      if (observationManager != null) {
+        observationManager.close();
+      }
+      observationManager = manager.newSubManager();
+      observation = state.createObservation(observationManager);
+    }
+    return observation;
   }
 
   public ActionSpace getActionSpace() {
     return actionSpace;
   }
 
+  /**
+   * Returns whether the paddle hit the ball often enough in the episode which just ended.
+   */
+  @Override
+  public boolean isWon() {
+    return engine.getScore() == BreakoutEngine.WINNING_SCORE;
+  }
+
+  /**
+   * Appends the episode which just ended, won if the paddle hit the ball often enough.
+   *
+   * @param reward the total reward of the episode
+   * @param wallNanos the time the episode took
+   */
+  public void recordEpisode(EpisodeStats stats, float reward, long wallNanos) {
+    final byte outcome = isWon() ? EpisodeStats.SUCCESS : EpisodeStats.FAILURE;
+    stats.append(episodeSteps, reward, outcome, 0, 0, wallNanos);
+  }
+
   public Step step(NDList action, boolean training) {
     int move = (int) action.singletonOrThrow().getFloat();
     State preState = state;
 
-    breakout.input(move);
-    breakout.step();
+    final TrainingEvents.EnvStep event = new TrainingEvents.EnvStep();
+    event.begin();
+    try (Timer.Context ignored = stepTimer.time()) {
+      engine.step(move);
+    }
+    episodeSteps++;
+    if (event.shouldCommit()) {
+      event.environment = "Breakout";
+      event.episode = episode;
+      event.step = episodeSteps;
+      event.action = move;
+      event.commit();
+    }
 
-    state = State.of(breakout);
+    state = State.of(engine);
     state.turn = -preState.turn;
+    observation = null;
 
-    BreakoutStep step = new BreakoutStep(manager.newSubManager(), preState, state, action, actionSpace);
+    final float reward = state.getReward(move);
     if (training) {
+      // Validation games keep out of the chart of the training rewards
+      REWARD_CHART.record(reward);
+    }
+    if (packedReplay != null) {
+      final long key = pack(preState, state, move, reward);
+      return training ? packedReplay.add(key) : packedReplay.get(key);
+    }
+    final NDManager stepManager = manager.newSubManager();
+    if (memoryTracker != null) {
+      memoryTracker.track(stepManager);
+    }
+    BreakoutStep step = BreakoutStep.of(stepManager, preState, state, action, reward, actionSpace);
+    if (!training) {
+      return step;
+    }
+    synchronized (replayBuffer) {
       replayBuffer.addStep(step);
     }
-    return step;
+    // The caller may close its step, only the replay buffer frees the arrays
+    return step.view();
+  }
+
+  /**
+   * Plays all games of the batched engine for the given number of steps and adds every transition to the replay
+   * buffer, a game which is done starts over.
+   *
+   * @param games the games to play, independent of the game of this environment
+   * @param policy chooses the moves of all games per step
+   * @param steps the steps per game, some episodes long so the transitions include paddle hits and lost balls
+   * @return the number of transitions added
+   */
+  public int collect(BatchedBreakoutEngine games, BatchedBreakoutEngine.Policy policy, int steps) {
+    final int size = games.size();
+    final float[] observations = new float[size];
+    final int[] moves = new int[size];
+    final State[] states = new State[size];
+    for (int i = 0; i < size; i++) {
+      states[i] = State.of(games, i);
+    }
+    for (int step = 0; step < steps; step++) {
+      games.observe(observations);
+      policy.act(observations, moves);
+      games.step(moves);
+      for (int i = 0; i < size; i++) {
+        State postState = State.of(games, i);
+        postState.turn = -states[i].turn;
+        if (packedReplay != null) {
+          packedReplay.add(pack(states[i], postState, moves[i], postState.getReward(moves[i])));
+        } else {
+          final Step transition = BreakoutStep.of(manager.newSubManager(), states[i], postState, actionSpace.get(moves[i]),
+              postState.getReward(moves[i]), actionSpace);
+          synchronized (replayBuffer) {
+            replayBuffer.addStep(transition);
+          }
+        }
+        if (postState.done) {
+          games.reset(i);
+          postState = State.of(games, i);
+        }
+        states[i] = postState;
+      }
+    }
+    return steps * size;
   }
 
+  /**
+   * Samples a batch from the replay buffer, safe to call while another thread plays.
+   */
   public Step[] getBatch() {
-    return replayBuffer.getBatch();
+    final TrainingEvents.BatchSample event = new TrainingEvents.BatchSample();
+    event.begin();
+    final Step[] batch;
+    try (Timer.Context ignored = sampleTimer.time()) {
+      if (packedReplay != null) {
+        batch = packedReplay.getBatch();
+      } else {
+        synchronized (replayBuffer) {
+          batch = replayBuffer.getBatch();
+        }
+      }
+    }
+    if (event.shouldCommit()) {
+      event.batchSize = batch.length;
+      event.commit();
+    }
+    return batch;
+  }
+
+  /**
+   * Returns the number of steps held by the replay buffer.
+   */
+  public int getReplaySize() {
+    return packedReplay != null ? packedReplay.size() : replayBuffer.size();
+  }
+
+  public int getReplayCapacity() {
+    return packedReplay != null ? packedReplay.getCapacity() : replayBuffer.getCapacity();
+  }
+
+  /**
+   * Returns the replay buffer of steps, null if the replay is packed.
+   */
+  public ResizableReplayBuffer getReplayBuffer() {
+    return replayBuffer;
+  }
+
+  /**
+   * Returns the packed replay buffer, null if the replay holds steps.
+   */
+  public PackedReplayBuffer getPackedReplay() {
+    return packedReplay;
+  }
+
+  /**
+   * Packs a transition into 25 bits: the observation sign and turn before and after, the move, whether the game
+   * ended and the reward as 16 bit fixed point.
+   */
+  private static long pack(State preState, State postState, int move, float reward) {
+    return pack(preState.getSign(), preState.turn, move, postState.getSign(), postState.turn, postState.done, reward);
+  }
+
+  private static long pack(int preSign, int preTurn, int move, int postSign, int postTurn, boolean done, float reward) {
+    final int fixed = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(reward * REWARD_SCALE)));
+    return (preSign + 1)
+        | (preTurn > 0 ? 1L : 0L) << 2
+        | (long) move << 3
+        | (long) (postSign + 1) << 5
+        | (postTurn > 0 ? 1L : 0L) << 7
+        | (done ? 1L : 0L) << 8
+        | (fixed & 0xFFFFL) << 9;
   }
 
   public void close() {
     manager.close();
   }
 
+  /**
+   * Packs the steps of this environment for a {@link PackedReplayBuffer}.
+   */
+  private final class Codec implements PackedReplayBuffer.Codec {
+
+    @Override
+    public long encode(Step step) {
+      final NDList pre = step.getPreObservation();
+      final NDList post = step.getPostObservation();
+      return pack((int) pre.get(0).getFloat(0), (int) pre.get(1).getFloat(), (int) step.getAction().singletonOrThrow().getFloat(),
+          (int) post.get(0).getFloat(0), (int) post.get(1).getFloat(), step.isDone(), step.getReward().getFloat());
+    }
+
+    @Override
+    public Step decode(long key, NDManager manager) {
+      return new PackedStep(manager, key, actionSpace);
+    }
+  }
+
+  /**
+   * A step unpacked from its key, its arrays are created once and kept by the {@link PackedReplayBuffer}.
+   */
+  static final class PackedStep implements Step {
+    private final NDList action;
+    private final ActionSpace actionSpace;
+    private final boolean done;
+    private final NDList postObservation;
+    private final NDList preObservation;
+    private final NDArray reward;
+
+    private PackedStep(NDManager manager, long key, ActionSpace actionSpace) {
+      this.actionSpace = actionSpace;
+      preObservation = new NDList(manager.create(new float[]{(key & 3) - 1}), manager.create((key >> 2 & 1) == 1 ? 1F : -1F));
+      action = actionSpace.get((int) (key >> 3 & 3));
+      postObservation = new NDList(manager.create(new float[]{(key >> 5 & 3) - 1}), manager.create((key >> 7 & 1) == 1 ? 1F : -1F));
+      done = (key >> 8 & 1) == 1;
+      reward = manager.create((short) (key >> 9 & 0xFFFF) / REWARD_SCALE);
+    }
+
+    @Override
+    public NDList getPreObservation() {
+      return preObservation;
+    }
+
+    @Override
+    public NDList getAction() {
+      return action;
+    }
+
+    @Override
+    public NDList getPostObservation() {
+      return postObservation;
+    }
+
+    @Override
+    public ActionSpace getPostActionSpace() {
+      return actionSpace;
+    }
+
+    @Override
+    public NDArray getReward() {
+      return reward;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    /**
+     * Keeps the arrays, the {@link PackedReplayBuffer} frees them with the manager once the key is dropped.
+     */
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * A step whose arrays belong to its own manager, closing frees them only if the step owns the manager.
+   */
   static final class BreakoutStep implements Step {
     private final NDList action;
     private final ActionSpace actionSpace;
+    private final boolean done;
     private final NDManager manager;
-    private final State postState;
-    private final State preState;
+    private final boolean ownsManager;
+    private final NDList postObservation;
+    private final NDList preObservation;
     private final NDArray reward;
 
-    private BreakoutStep(NDManager manager, State preState, State postState, NDList action, ActionSpace actionSpace) {
+    private BreakoutStep(NDManager manager, boolean ownsManager, NDList preObservation, NDList action, NDList postObservation, NDArray reward, boolean done, ActionSpace actionSpace) {
       this.manager = manager;
-      this.postState = postState;
+      this.ownsManager = ownsManager;
+      this.preObservation = preObservation;
       this.action = action;
+      this.postObservation = postObservation;
+      this.reward = reward;
+      this.done = done;
       this.actionSpace = actionSpace;
-      this.preState = preState;
-      reward = manager.create(postState.getReward(action));
+    }
+
+    /**
+     * Creates a step owning the given manager, which holds all its arrays.
+     */
+    private static BreakoutStep of(NDManager manager, State preState, State postState, NDList action, float reward, ActionSpace actionSpace) {
+      return new BreakoutStep(manager, true, preState.createObservation(manager), action, postState.createObservation(manager),
+          manager.create(reward), postState.done, actionSpace);
+    }
+
+    /**
+     * Returns a step sharing the arrays of this one, which keeps them on close.
+     */
+    private BreakoutStep view() {
+      return new BreakoutStep(manager, false, preObservation, action, postObservation, reward, done, actionSpace);
     }
 
     /**
@@ -91,7 +418,7 @@ public class BreakoutEnv implements RlEnv {
      */
     @Override
     public NDList getPreObservation() {
-      return preState.createObservation(manager);
+      return preObservation;
     }
 
     /**
@@ -107,7 +434,7 @@ public class BreakoutEnv implements RlEnv {
      */
     @Override
     public NDList getPostObservation() {
-      return postState.createObservation(manager);
+      return postObservation;
     }
 
     /**
@@ -133,7 +460,7 @@ public class BreakoutEnv implements RlEnv {
      */
     @Override
     public boolean isDone() {
-      return postState.done;
+      return done;
     }
 
     /**
@@ -141,11 +468,9 @@ public class BreakoutEnv implements RlEnv {
      */
     @Override
     public void close() {
-      // preState.close();
-      // postState.close();
-      reward.close();
-      // manager.close();
-
+      if (ownsManager) {
+        manager.close();
+      }
     }
   }
 
@@ -160,7 +485,6 @@ public class BreakoutEnv implements RlEnv {
     private final double paddleW;
     private final double paddleX;
     int turn;
-    private volatile NDList observation = null;
 
     private State(double paddleX, double paddleW, double ballX, int turn, boolean done) {
       this.paddleX = paddleX;
@@ -171,37 +495,43 @@ public class BreakoutEnv implements RlEnv {
     }
 
 
-    private static State of(Breakout moonLander) {
-      return of(moonLander.paddle.getTranslateX() + moonLander.paddle.getWidth() / 2, moonLander.paddle.getWidth(), moonLander.ball.getTranslateX(), 1, moonLander.isDone());
+    private static State of(BreakoutEngine engine) {
+      return of(engine.getPaddleX() + BreakoutEngine.PADDLE_WIDTH / 2, BreakoutEngine.PADDLE_WIDTH, engine.getBallX(), 1, engine.isDone());
+    }
+
+    private static State of(BatchedBreakoutEngine games, int game) {
+      return of(games.getPaddleX(game) + BreakoutEngine.PADDLE_WIDTH / 2, BreakoutEngine.PADDLE_WIDTH, games.getBallX(game), 1, games.isDone(game));
     }
 
     private static State of(double paddleX, double paddleW, double ballX, int turn, boolean done) {
       return new State(paddleX, paddleW, ballX, turn, done);
     }
 
-    private void close() {
-      if (observation != null) {
-        observation.close();
-      }
+    /**
+     * Returns whether the ball is left of the paddle center as 1, right as -1, else 0.
+     */
+    private int getSign() {
+      return Integer.signum((int) (paddleX - ballX));
     }
 
+    /**
+     * Creates a new observation of this state, owned by the given manager.
+     */
     private NDList createObservation(NDManager manager) {
-      if (observation == null) {
-        int i = (int) (paddleX - ballX);
-        if (i < 0) {
-          i = -1;
-        } else if (i > 0) {
-          i = 1;
-        }
-        observation = new NDList(manager.create(new float[]{i}), manager.create((float) turn));
-        // observation = new NDList(manager.create(new float[]{i}));
-      }
-      return observation;
+      int i = getSign();
+      return new NDList(manager.create(new float[]{i}), manager.create((float) turn));
+      // return new NDList(manager.create(new float[]{i}));
     }
     public float getReward(NDList action) {
+      return getReward((int) action.singletonOrThrow().getFloat());
+    }
+
+    /**
+     * @param move the paddle action: 0 = stay, 1 = move left, 2 = move right
+     */
+    public float getReward(int move) {
       double reward;
       double distance = Math.abs(paddleX - ballX); // Distance between paddle and ball
-      int move = (int) action.singletonOrThrow().getFloat(); // Paddle action: 0 = stay, 1 = move left, 2 = move right
 
       if (distance < paddleW / 2) {
         // Ball successfully hit with paddle: reward based on how close it was to the paddle's center
@@ -223,9 +553,6 @@ public class BreakoutEnv implements RlEnv {
         reward -= 0.2;
       }
 
-      // Send scaled reward to live chart for debugging/logging
-      RealTimeChart.send(RealTimeEvent.of("Reward", Duration.ofMillis((long) (reward * 100))));
-
       // Return the scaled reward
       return (float) reward;
     }
@@ -237,7 +564,6 @@ public class BreakoutEnv implements RlEnv {
         reward = -Math.abs(paddleX - ballX);
         //	reward = 0;
       }
-      RealTimeChart.send(RealTimeEvent.of("Reward", Duration.ofMillis((long) reward)));
       return (float) reward;
     }
   }
@@ -13,14 +13,17 @@
 package com.itth.breakout;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import ai.djl.Device;
 import ai.djl.Model;
 import ai.djl.basicmodelzoo.basic.Mlp;
 import ai.djl.modality.rl.agent.QAgent;
 import ai.djl.modality.rl.agent.RlAgent;
-import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.modality.rl.env.RlEnv;
 import ai.djl.ndarray.BaseNDManager;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDArrays;
@@ -44,7 +47,27 @@ import ai.djl.training.tracker.CosineTracker;
 import ai.djl.training.tracker.CyclicalTracker;
 import ai.djl.training.tracker.PolynomialDecayTracker;
 import ai.djl.training.tracker.Tracker;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.itth.moonlander.EpsilonGreedy;
+import com.itth.moonlander.metrics.EpisodeStats;
+import com.itth.moonlander.metrics.NDMemoryTracker;
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
 import com.itth.moonlander.samples.TicTacToe;
+import com.itth.moonlander.training.ActionRepeatEnv;
+import com.itth.moonlander.training.BatchPrefetcher;
+import com.itth.moonlander.training.ConvergenceMonitor;
+import com.itth.moonlander.training.FrameStackEnv;
+import com.itth.moonlander.training.MemoryBudget;
+import com.itth.moonlander.training.MemoryGovernor;
+import com.itth.moonlander.training.OutcomeEnv;
+import com.itth.moonlander.training.PerGameTracker;
+import com.itth.moonlander.training.PreparedBatch;
+import com.itth.moonlander.training.ResizableReplayBuffer;
+import com.itth.moonlander.training.StackedQAgent;
+import com.itth.moonlander.training.UpdateScheduler;
+import com.itth.moonlander.training.ValidationRunner;
 import me.tongfei.progressbar.ProgressBar;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -148,17 +171,25 @@ public final class BreakoutTrainer {
 	}
 	
 
-	public static DefaultTrainingConfig createConfig(int epoch, int gamesPerEpoch) {
+	/**
+	 Returns the learning rate after the warm-up, a cosine decay over the planned games, stepped by the trainer once
+	 per game.
+	 */
+	public static PerGameTracker createLearningRate(int epoch, int gamesPerEpoch) {
 		final CosineTracker cosineTracker = Tracker.cosine()
 				.setMaxUpdates(epoch * gamesPerEpoch)
 				//.setBaseValue(0.001F) // last working with cyclic tracker 10/04/23
 				.setBaseValue(0.1F)
 				.optFinalValue(0.0001F).build();
+		return new PerGameTracker(cosineTracker);
+	}
+
+	public static DefaultTrainingConfig createConfig(Tracker learningRate) {
 		Tracker lrWarmupTracker =
 		    Tracker.warmUp()
 		        .optWarmUpBeginValue(0.0001F) // Start with a small learning rate
-		        .optWarmUpSteps(1000)         // Gradually increase over 1,000 steps
-		        .setMainTracker(cosineTracker) // Converge to the cosine schedule
+		        .optWarmUpSteps(1000)         // Gradually increase over 1,000 updates
+		        .setMainTracker(learningRate) // Converge to the schedule, which counts games
 		        .build();
 
 		return new DefaultTrainingConfig(Loss.l2Loss())
@@ -192,32 +223,62 @@ public final class BreakoutTrainer {
 		int epoch = 128;
 		int batchSize = 1024;
 		int replayBufferSize = 1024 * 1024;
+		// Simulated seconds per step, the swept collision allows up to 50 times the default with fewer steps per game
+		double dt = BreakoutEngine.DT;
+		// Observations stacked so the agent sees the ball move, 1 plays on the single observation
+		int frameStack = 1;
+		// Steps per decision, adaptive repeats only while the side of the ball stays the same, 1 decides every step
+		int actionRepeat = 1;
+		boolean adaptiveRepeat = true;
+		// Random transitions of many batched games filling the replay before the first update, each game plays for
+		// two falls of the ball from the top, so the transitions include paddle hits and lost balls
+		int warmupGames = 256;
+		int warmupSteps = (int) (BreakoutEngine.SCENE_HEIGHT / BreakoutEngine.VELOCITY / dt) * 2;
 		//int gamesPerEpoch = Math.toIntExact(1024);
 		int gamesPerEpoch = Math.toIntExact(16);
-		// Validation is deterministic, thus one game is enough
-		int validationGamesPerEpoch = 1;
+		// The ball starts with a random direction, thus validation needs many games, they run concurrently
+		int validationGamesPerEpoch = 64;
 		float rewardDiscount = 0.9F;
+		// Shared by replay, other tensors and episode statistics, caps the replay buffer size
+		MemoryBudget budget = MemoryBudget.builder().setTotal("4 GiB").build();
+		// Packs every transition into 4 bytes and dedups them, only steps with arrays need to fit the budget
+		boolean packedReplay = true;
+		if (!packedReplay) {
+			replayBufferSize = Math.min(replayBufferSize, budget.replayCapacity(MemoryGovernor.estimateStepBytes(2)));
+		}
 		//Engine engine = Engine.getEngine("PyTorch");
 		//System.out.println("Using backend engine: " + engine.getEngineName());
 		//System.out.println("Found GPU: " + engine.getGpuCount());
 		//try (BaseNDManager manager = (BaseNDManager)NDManager.newBaseManager(Device.cpu())) {
 		// try (BaseNDManager manager = (BaseNDManager)NDManager.newBaseManager(DEVICE)) {
 		try (BaseNDManager manager = (BaseNDManager)NDManager.newBaseManager()) {
-			try (BreakoutEnv game = new BreakoutEnv(moonLander, manager, batchSize, replayBufferSize)) {
+			moonLander.getEngine().setDt(dt);
+			try (BreakoutEnv game = new BreakoutEnv(moonLander, manager, batchSize, replayBufferSize, packedReplay);
+					NDMemoryTracker memoryTracker = new NDMemoryTracker(60, 1024)) {
+				memoryTracker.register("env", manager);
+				game.setMemoryTracker(memoryTracker);
+				// Plays and samples through the frame stack and action repeat, which keep their own replay
+				RlEnv stacked = frameStack > 1 ? new FrameStackEnv(game, manager, frameStack, batchSize, replayBufferSize) : game;
+				// The repeated steps hold arrays, thus their replay has to fit the budget even with the packed replay
+				int repeatBufferSize = Math.min(replayBufferSize, budget.replayCapacity(MemoryGovernor.estimateStepBytes(frameStack + 1)));
+				RlEnv env = actionRepeat > 1 ? new ActionRepeatEnv(stacked, manager, actionRepeat, adaptiveRepeat, batchSize, repeatBufferSize) : stacked;
 
 				// Block block = createBlockMlp();
 				Block block = createBlock();
 
 				try (Model model = Model.newInstance(NAME)) {
 					model.setBlock(block);
+					memoryTracker.register("model", (BaseNDManager) model.getNDManager());
 
-					DefaultTrainingConfig config = createConfig(epoch, gamesPerEpoch);
+					PerGameTracker learningRate = createLearningRate(epoch, gamesPerEpoch);
+					DefaultTrainingConfig config = createConfig(learningRate);
 					try (Trainer trainer = model.newTrainer(config)) {
 						trainer.initialize(
-								new Shape(batchSize, 1), new Shape(batchSize), new Shape(batchSize));
+								new Shape(batchSize, frameStack), new Shape(batchSize), new Shape(batchSize));
 						trainer.notifyListeners(listener -> listener.onTrainingBegin(trainer));
 						// Constructs the agent to train and play with
-						RlAgent agent = new QAgent(trainer, rewardDiscount);
+						StackedQAgent learner = new StackedQAgent(trainer, rewardDiscount);
+						RlAgent agent = learner;
 						Tracker exploreRate =
 								PolynomialDecayTracker.builder()
 										.setBaseValue(1.0f)
@@ -232,58 +293,117 @@ public final class BreakoutTrainer {
 										.optMaxValue(0.9F)
 										.build();
 						Tracker tracker = exploreRate;
-						agent = new com.itth.moonlander.EpsilonGreedy(agent, tracker);
+						EpsilonGreedy explorer = new EpsilonGreedy(agent, tracker);
+						agent = explorer;
+						UpdateScheduler scheduler = UpdateScheduler.builder()
+								.setUpdatesPerInterval(1)
+								.setStepsPerInterval(256)
+								.optMinUpdates(1)
+								.build();
+
+						TrainingMetrics.startReporters(Paths.get("build/metrics"), 10);
+						TrainingMetrics.gauge(TrainingMetrics.REPLAY_FILL, () -> (float) game.getReplaySize() / game.getReplayCapacity());
+						TrainingMetrics.gauge(TrainingMetrics.EPSILON, () -> explorer.getMetrics().getEpsilon());
+						Meter games = TrainingMetrics.meter(TrainingMetrics.ENV_GAMES);
+						Files.createDirectories(Paths.get("build/stats"));
+						EpisodeStats episodes = new EpisodeStats(Math.min(1 << 20, MemoryGovernor.statsRows(budget)), Paths.get("build/stats/" + NAME + "-episodes.bin"));
+						ResizableReplayBuffer governedReplay = env instanceof ActionRepeatEnv ? ((ActionRepeatEnv) env).getReplayBuffer() : game.getReplayBuffer();
+						MemoryGovernor governor = new MemoryGovernor(budget, memoryTracker, "env", governedReplay, episodes);
+						if (env == game) {
+							BatchedBreakoutEngine warmupEngine = new BatchedBreakoutEngine(warmupGames);
+							warmupEngine.setDt(dt);
+							int warmup = game.collect(warmupEngine, BatchedBreakoutEngine.Policy.random(new Random()), warmupSteps);
+							logger.info("Replay warmup: {} transitions", warmup);
+							if (game.getPackedReplay() != null) {
+								logger.info("Packed replay: {} distinct transitions", game.getPackedReplay().getDistinct());
+							}
+						}
 						float bestValidationWinRate = 0;
+						// Stops early once validation saturated, plateaued or collapsed
+						ConvergenceMonitor monitor = ConvergenceMonitor.builder()
+								.setGamesPerEpoch(gamesPerEpoch)
+								.optMinGamesPerEpoch(gamesPerEpoch / 4)
+								.optMaxGamesPerEpoch(gamesPerEpoch * 4)
+								.optPatience(8)
+								.build();
 						float validationWinRate = 0;
 						float trainWinRate = 0;
+						CompletableFuture<ValidationRunner.Result> validation = null;
+						// Stacks the next batches of {batchSize} steps while the current one is trained
+						try (BatchPrefetcher prefetcher = new BatchPrefetcher(() -> scheduler.nextBatch(env::getBatch), manager, 2);
+								ValidationRunner validator = ValidationRunner.builder()
+										.setBlockFactory(BreakoutTrainer::createBlock)
+										.setInputShapes(new Shape(1, frameStack), new Shape(1), new Shape(1))
+										.setEnvironment(validationManager -> createValidationEnv(validationManager, dt, frameStack, actionRepeat, adaptiveRepeat))
+										.optGames(validationGamesPerEpoch)
+										.build()) {
 							for (int i = 0; i < epoch; i++) {
+								final int epochGames = monitor.getGamesPerEpoch();
 								int trainingWins = 0;
-								try (ProgressBar bar = new ProgressBar("Epoch " + i, gamesPerEpoch)) {
-									for (int j = 0; j < gamesPerEpoch; j++) {
-										float result = game.runEnvironment(agent, true);
-										Step[] batchSteps = game.getBatch();
-										agent.trainBatch(batchSteps);
-										trainer.step();
+								try (ProgressBar bar = new ProgressBar("Epoch " + i, epochGames)) {
+									for (int j = 0; j < epochGames; j++) {
+										governor.admit();
+										final long start = System.nanoTime();
+										float result = env.runEnvironment(agent, true);
+										game.recordEpisode(episodes, result, System.nanoTime() - start);
+										scheduler.update(game.getEpisodeSteps(), () -> {
+											try (PreparedBatch batch = prefetcher.take()) {
+												learner.trainBatch(batch);
+											}
+											scheduler.step(trainer);
+										});
+										learningRate.gamePlayed();
+										games.mark();
 										bar.step();
 										// Record if the game was won
-										if (result > 0) {
+										if (game.isWon()) {
 											trainingWins++;
 										}
 										constantTracker.subtract(0.0025f);
 										//System.err.println("Tracker: " + tracker.getNewValue(0));
-										//System.err.println("Action: " + ((com.itth.moonlander.EpsilonGreedy) agent).getMap());
 										//System.err.println("epsilon: " + exploreCyclic.getNewValue(0));
-										//manager.debugDump(2);
 										if(result > bestValidationWinRate) {
-											save(model);
+											save(model, NAME);
 											bestValidationWinRate = result;
 										}
 									}
 								}
-								trainWinRate = (float)trainingWins / gamesPerEpoch;
-								logger.info("Training wins: {}", trainWinRate);
+								logger.info("Exploration: {}", explorer.getMetrics());
+								if (env instanceof ActionRepeatEnv) {
+									logger.info("Steps per decision: {}", ((ActionRepeatEnv) env).getMeanRepeat());
+								}
+								trainWinRate = (float)trainingWins / epochGames;
+								logger.info("Training wins: {}, updates per step: {}", trainWinRate, scheduler.getUpdateToDataRatio());
+								logger.info("Episodes: {}", episodes.summary(epochGames * 4));
 
 								trainer.notifyListeners(listener -> listener.onEpoch(trainer));
 
-								// Counts win rate after playing {validationGamesPerEpoch} games
-								int validationWins = 0;
-								for (int j = 0; j < validationGamesPerEpoch; j++) {
-									float result = game.runEnvironment(agent, false);
-									if (result > 0) {
-										validationWins++;
+								// Decides on the validation of the previous epoch, its games played while this epoch trained
+								if (validation != null) {
+									ValidationRunner.Result validated = validation.join();
+									validation = null;
+									validationWinRate = validated.getWinRate();
+									if (decide(monitor, validator, validated)) {
+										break;
 									}
 								}
-
-								validationWinRate = (float)validationWins / validationGamesPerEpoch;
-								logger.info("Validation wins: {}", validationWinRate);
+								validation = validator.validate(block);
 							}
+							// The validation of the last epoch may still improve on the best model
+							if (validation != null) {
+								ValidationRunner.Result validated = validation.join();
+								validationWinRate = validated.getWinRate();
+								decide(monitor, validator, validated);
+							}
+						}
 
+						episodes.flush();
 						trainer.notifyListeners(listener -> listener.onTrainingEnd(trainer));
 
 						TrainingResult trainingResult = trainer.getTrainingResult();
 						trainingResult.getEvaluations().put("validate_winRate", validationWinRate);
 						trainingResult.getEvaluations().put("train_winRate", trainWinRate);
-						save(model);
+						save(model, NAME);
 						return trainingResult;
 					}
 				}
@@ -292,8 +412,45 @@ public final class BreakoutTrainer {
 	}
 
 
-	private static void save(Model model) throws IOException {
-		model.save(Paths.get("build/model"), NAME);
+	/**
+	 Creates a headless environment like the trained one for the concurrent validation games.
+	 */
+	private static OutcomeEnv createValidationEnv(BaseNDManager manager, double dt, int frameStack, int actionRepeat, boolean adaptiveRepeat) {
+		BreakoutEngine engine = new BreakoutEngine();
+		engine.setDt(dt);
+		OutcomeEnv env = new BreakoutEnv(engine, manager, 1, 1);
+		if (frameStack > 1) {
+			env = new FrameStackEnv(env, manager, frameStack, 1, 1024);
+		}
+		if (actionRepeat > 1) {
+			env = new ActionRepeatEnv(env, manager, actionRepeat, adaptiveRepeat, 1, 1);
+		}
+		return env;
+	}
+
+	/**
+	 Lets the monitor decide on a validation result and keeps the validated parameters if they improved.
+
+	 @return whether training stops
+	 */
+	private static boolean decide(ConvergenceMonitor monitor, ValidationRunner validator, ValidationRunner.Result validated) throws IOException {
+		logger.info("Validation wins: {}", validated);
+		ConvergenceMonitor.Decision decision = monitor.update(validated.getWinRate(), validated.getMeanReward());
+		logger.info("Convergence: {}", monitor.getReason());
+		if (monitor.isImproved()) {
+			validator.save(Paths.get("build/model"), NAME + "-best");
+		}
+		return decision == ConvergenceMonitor.Decision.STOP;
+	}
+
+	private static void save(Model model, String name) throws IOException {
+		final TrainingEvents.Save event = new TrainingEvents.Save();
+		event.begin();
+		try (Timer.Context ignored = TrainingMetrics.timer(TrainingMetrics.CHECKPOINT_SAVE).time()) {
+			model.save(Paths.get("build/model"), name);
+		}
+		event.model = name;
+		event.commit();
 		System.err.println("model saved: " + Paths.get("build/model"));
 	}
 
@@ -0,0 +1,17 @@
+package com.itth.moonlander;
+
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.ndarray.NDList;
+
+/**
+ Computes the Q-values of all actions of an observation, the forward pass a greedy choice is based on.
+ */
+public interface ActionScorer {
+
+	/**
+	 @param observation the current observation
+	 @param actionSpace the actions to score
+	 @return the Q-values in the order of the action space
+	 */
+	float[] scoreActions(NDList observation, ActionSpace actionSpace);
+}
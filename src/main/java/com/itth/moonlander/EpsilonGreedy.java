@@ -12,16 +12,19 @@
  */
 package com.itth.moonlander;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import ai.djl.modality.rl.ActionSpace;
 import ai.djl.modality.rl.agent.RlAgent;
 import ai.djl.modality.rl.env.RlEnv;
 import ai.djl.modality.rl.env.RlEnv.Step;
 import ai.djl.ndarray.NDList;
 import ai.djl.training.tracker.Tracker;
 import ai.djl.util.RandomUtils;
+import com.codahale.metrics.Timer;
 import org.apache.logging.log4j.*;
-import org.nd4j.shade.guava.util.concurrent.RateLimiter;
+
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
 
 /**
  * The {@link EpsilonGreedy} is a simple exploration/excitation agent.
@@ -36,48 +39,67 @@ import org.nd4j.shade.guava.util.concurrent.RateLimiter;
  */
 public class EpsilonGreedy implements RlAgent {
     protected final static Logger logger = LogManager.getLogger(EpsilonGreedy.class);
+    private static final Timer chooseTimer = TrainingMetrics.timer(TrainingMetrics.CHOOSE_ACTION);
 
     private RlAgent baseAgent;
     private Tracker exploreRate;
 
-    private final RateLimiter limiter = RateLimiter.create(0.1);
+    private final AtomicInteger counter = new AtomicInteger();
+    private final ExplorationMetrics metrics;
 
-    public Map<Float, Float> getMap() {
-        return map;
+    /**
+     * Constructs an {@link EpsilonGreedy} for an action space of three actions.
+     *
+     * @param baseAgent the (presumably model-based) agent to use for exploitation and to train
+     * @param exploreRate the probability of taking a random action
+     */
+    public EpsilonGreedy(RlAgent baseAgent, Tracker exploreRate) {
+        this(baseAgent, exploreRate, new ExplorationMetrics(3));
     }
 
-    private final Map<Float, Float> map = new ConcurrentHashMap<>();
-    private int counter;
-
     /**
      * Constructs an {@link EpsilonGreedy}.
      *
      * @param baseAgent the (presumably model-based) agent to use for exploitation and to train
      * @param exploreRate the probability of taking a random action
+     * @param metrics the metrics to record the decisions in
      */
-    public EpsilonGreedy(RlAgent baseAgent, Tracker exploreRate) {
+    public EpsilonGreedy(RlAgent baseAgent, Tracker exploreRate, ExplorationMetrics metrics) {
         this.baseAgent = baseAgent;
         this.exploreRate = exploreRate;
+        this.metrics = metrics;
+    }
+
+    public ExplorationMetrics getMetrics() {
+        return metrics;
     }
 
     /** {@inheritDoc} */
     @Override
     public NDList chooseAction(RlEnv env, boolean training) {
+        final TrainingEvents.ActionSelection event = new TrainingEvents.ActionSelection();
+        event.begin();
         final NDList arrays;
-        final float rate = exploreRate.getNewValue(counter++);
-        if (training && RandomUtils.random() < rate) {
-            arrays = env.getActionSpace().randomAction();
-            return arrays;
-        } else {
-            arrays = baseAgent.chooseAction(env, training);
+        try (Timer.Context ignored = chooseTimer.time()) {
+            arrays = choose(env, training, event);
         }
-        final float anInt = arrays.singletonOrThrow().getFloat();
-        map.put(anInt, map.computeIfAbsent(anInt, integer -> 0F) + 1);
-        if(limiter.tryAcquire()) {
-            System.err.println("");
-            System.err.println("Epsilon: " + rate);
-            System.err.println("Action: " + map);
+        metrics.record(event.action, event.explored);
+        event.training = training;
+        event.commit();
+        return arrays;
+    }
+
+    private NDList choose(RlEnv env, boolean training, TrainingEvents.ActionSelection event) {
+        final float rate = exploreRate.getNewValue(counter.getAndIncrement());
+        metrics.setEpsilon(rate);
+        if (training && RandomUtils.random() < rate) {
+            final ActionSpace actionSpace = env.getActionSpace();
+            event.action = RandomUtils.nextInt(actionSpace.size());
+            event.explored = true;
+            return actionSpace.get(event.action);
         }
+        final NDList arrays = baseAgent.chooseAction(env, training);
+        event.action = (int)arrays.singletonOrThrow().getFloat();
         return arrays;
     }
 
@@ -0,0 +1,91 @@
+package com.itth.moonlander;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ Counts the actions an exploring agent took and how often it explored.
+
+ <p>Recording is lock-free and allocation-free, so many environment threads can share one instance.
+ */
+public class ExplorationMetrics {
+	private final LongAdder[] actions;
+	private final LongAdder exploited = new LongAdder();
+	private final LongAdder explored = new LongAdder();
+	private volatile float epsilon;
+
+	/**
+	 @param actionCount the number of actions in the action space, actions are counted by index
+	 */
+	public ExplorationMetrics(int actionCount) {
+		actions = new LongAdder[actionCount];
+		for (int i = 0; i < actionCount; i++) {
+			actions[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 Records one decision.
+
+	 @param action  the index of the action taken
+	 @param explore whether the action was taken to explore rather than as the best known one
+	 */
+	public void record(int action, boolean explore) {
+		actions[action].increment();
+		(explore ? explored : exploited).increment();
+	}
+
+	public float getEpsilon() {
+		return epsilon;
+	}
+
+	public void setEpsilon(float epsilon) {
+		this.epsilon = epsilon;
+	}
+
+	public long getActionCount(int action) {
+		return actions[action].sum();
+	}
+
+	public long[] getActionCounts() {
+		final long[] counts = new long[actions.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = actions[i].sum();
+		}
+		return counts;
+	}
+
+	public long getExploited() {
+		return exploited.sum();
+	}
+
+	public long getExplored() {
+		return explored.sum();
+	}
+
+	/**
+	 The share of decisions taken to explore.
+	 */
+	public float getExploreRatio() {
+		final long explored = getExplored();
+		final long total = explored + getExploited();
+		return total == 0 ? 0 : (float)explored / total;
+	}
+
+	public void reset() {
+		for (LongAdder action : actions) {
+			action.reset();
+		}
+		explored.reset();
+		exploited.reset();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder("actions [");
+		for (int i = 0; i < actions.length; i++) {
+			builder.append(i == 0 ? "" : ", ").append(i).append('=').append(actions[i].sum());
+		}
+		return builder.append("], explore ").append(String.format("%.3f", getExploreRatio()))
+				.append(", epsilon ").append(String.format("%.3f", epsilon)).toString();
+	}
+}
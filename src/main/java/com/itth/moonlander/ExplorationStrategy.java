@@ -0,0 +1,136 @@
+package com.itth.moonlander;
+
+import java.util.concurrent.ThreadLocalRandom;
+import ai.djl.training.tracker.Tracker;
+
+/**
+ Picks the action to take from the Q-values the greedy choice is based on, thus exploring costs no additional
+ forward pass.
+
+ <p>Temperatures and noise are relative to the spread of the Q-values of the observation, so the strategies work
+ independently of the reward scale.
+ */
+public interface ExplorationStrategy {
+
+	/**
+	 @param scores the Q-values of all actions
+	 @param update the number of decisions taken so far, for the trackers
+	 @return the index of the action to take
+	 */
+	int select(float[] scores, int update);
+
+	/**
+	 The current exploration parameter, e.g. epsilon or temperature.
+	 */
+	float getValue(int update);
+
+	/**
+	 Always takes the best action.
+	 */
+	static ExplorationStrategy greedy() {
+		return new ExplorationStrategy() {
+			public int select(float[] scores, int update) {
+				return argMax(scores);
+			}
+
+			public float getValue(int update) {
+				return 0;
+			}
+		};
+	}
+
+	/**
+	 Takes a uniformly random action with the probability of the tracker, the best action otherwise.
+	 */
+	static ExplorationStrategy epsilonGreedy(Tracker epsilon) {
+		return new ExplorationStrategy() {
+			public int select(float[] scores, int update) {
+				final ThreadLocalRandom random = ThreadLocalRandom.current();
+				return random.nextFloat() < epsilon.getNewValue(update) ? random.nextInt(scores.length) : argMax(scores);
+			}
+
+			public float getValue(int update) {
+				return epsilon.getNewValue(update);
+			}
+		};
+	}
+
+	/**
+	 Samples from the softmax of the Q-values divided by the tracked temperature, so actions which are almost as
+	 good as the best one are tried far more often than clearly bad ones.
+	 */
+	static ExplorationStrategy boltzmann(Tracker temperature) {
+		return new ExplorationStrategy() {
+			public int select(float[] scores, int update) {
+				final int best = argMax(scores);
+				final float spread = scores[best] - scores[argMin(scores)];
+				final float scale = temperature.getNewValue(update) * spread;
+				if (!(scale > 0)) {
+					return ThreadLocalRandom.current().nextInt(scores.length);
+				}
+				double sum = 0;
+				for (float score : scores) {
+					sum += Math.exp((score - scores[best]) / scale);
+				}
+				double threshold = ThreadLocalRandom.current().nextDouble() * sum;
+				for (int i = 0; i < scores.length - 1; i++) {
+					threshold -= Math.exp((scores[i] - scores[best]) / scale);
+					if (threshold < 0) {
+						return i;
+					}
+				}
+				return scores.length - 1;
+			}
+
+			public float getValue(int update) {
+				return temperature.getNewValue(update);
+			}
+		};
+	}
+
+	/**
+	 Takes the best action after adding gaussian noise with the tracked standard deviation to the Q-values.
+	 */
+	static ExplorationStrategy noisyArgMax(Tracker noise) {
+		return new ExplorationStrategy() {
+			public int select(float[] scores, int update) {
+				final float deviation = noise.getNewValue(update) * (scores[argMax(scores)] - scores[argMin(scores)]);
+				final ThreadLocalRandom random = ThreadLocalRandom.current();
+				int best = 0;
+				double bestValue = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < scores.length; i++) {
+					final double value = scores[i] + random.nextGaussian() * deviation;
+					if (value > bestValue) {
+						bestValue = value;
+						best = i;
+					}
+				}
+				return best;
+			}
+
+			public float getValue(int update) {
+				return noise.getNewValue(update);
+			}
+		};
+	}
+
+	static int argMax(float[] values) {
+		int best = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] > values[best]) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	static int argMin(float[] values) {
+		int worst = 0;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] < values[worst]) {
+				worst = i;
+			}
+		}
+		return worst;
+	}
+}
@@ -0,0 +1,86 @@
+package com.itth.moonlander;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.modality.rl.agent.RlAgent;
+import ai.djl.modality.rl.env.RlEnv;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.ndarray.NDList;
+import com.codahale.metrics.Timer;
+
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
+
+/**
+ An agent which explores using the Q-values of its greedy choice.
+
+ <p>Unlike {@link EpsilonGreedy} it always scores the actions and lets an {@link ExplorationStrategy} pick from
+ those scores, so exploration can prefer promising actions without any extra inference. Without training the best
+ action is taken.
+ */
+public class ExploringAgent implements RlAgent {
+	private static final Timer chooseTimer = TrainingMetrics.timer(TrainingMetrics.CHOOSE_ACTION);
+	private final AtomicInteger counter = new AtomicInteger();
+	private final RlAgent learner;
+	private final ExplorationMetrics metrics;
+	private final ActionScorer scorer;
+	private final ExplorationStrategy strategy;
+
+	/**
+	 Constructs an {@link ExploringAgent} for an action space of three actions.
+
+	 @param learner  the agent to train, may be null if this agent only plays
+	 @param scorer   the Q-values to act on
+	 @param strategy the strategy to explore with during training
+	 */
+	public ExploringAgent(RlAgent learner, ActionScorer scorer, ExplorationStrategy strategy) {
+		this(learner, scorer, strategy, new ExplorationMetrics(3));
+	}
+
+	public ExploringAgent(RlAgent learner, ActionScorer scorer, ExplorationStrategy strategy, ExplorationMetrics metrics) {
+		this.learner = learner;
+		this.scorer = scorer;
+		this.strategy = strategy;
+		this.metrics = metrics;
+	}
+
+	public ExplorationMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public NDList chooseAction(RlEnv env, boolean training) {
+		final TrainingEvents.ActionSelection event = new TrainingEvents.ActionSelection();
+		event.begin();
+		final ActionSpace actionSpace = env.getActionSpace();
+		try (Timer.Context ignored = chooseTimer.time()) {
+			choose(env.getObservation(), actionSpace, training, event);
+		}
+		metrics.record(event.action, event.explored);
+		event.training = training;
+		event.commit();
+		return actionSpace.get(event.action);
+	}
+
+	private void choose(NDList observation, ActionSpace actionSpace, boolean training, TrainingEvents.ActionSelection event) {
+		final float[] scores = scorer.scoreActions(observation, actionSpace);
+		final int best = ExplorationStrategy.argMax(scores);
+		event.action = best;
+		if (training) {
+			final int update = counter.getAndIncrement();
+			event.action = strategy.select(scores, update);
+			metrics.setEpsilon(strategy.getValue(update));
+		}
+		event.explored = event.action != best;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void trainBatch(Step[] batchSteps) {
+		if (learner == null) {
+			throw new UnsupportedOperationException("this agent only plays");
+		}
+		learner.trainBatch(batchSteps);
+	}
+}
@@ -0,0 +1,55 @@
+package com.itth.moonlander;
+
+/**
+ The lander as seen by {@link MoonLanderEnv}, either the JavaFX game or the headless {@link MoonLanderSimulation}.
+ */
+public interface Lander {
+
+	void reset();
+
+	/**
+	 Resets the lander to the given start state instead of the top, the thrust equal to gravity.
+
+	 @param height           the height above the ground in m, at most {@link ResetSampler#MAX_HEIGHT}
+	 @param velocityVertical the downward velocity in km/h
+	 @param fuel             the fuel in l
+	 */
+	void reset(double height, double velocityVertical, double fuel);
+
+	/**
+	 @param action 0 keeps the thrust equal to gravity, 1 raises and 2 lowers it
+	 */
+	void input(int action);
+
+	/**
+	 Advances the lander by 100 ms of simulated time.
+	 */
+	void step();
+
+	double calculateLanderHeight();
+
+	double getVelocityVerticalInKmH();
+
+	double calculateVelocityCriticalInKmH();
+
+	double getThrustVertical();
+
+	double getFuel();
+
+	boolean isLanded();
+
+	boolean isCrashed();
+
+	double getTimeElapsedInSeconds();
+
+	/**
+	 Writes the five observed values of the lander, scaled to roughly unit range.
+	 */
+	default void observe(float[] target, int offset) {
+		target[offset] = (float)(calculateLanderHeight() / 90);
+		target[offset + 1] = (float)(getVelocityVerticalInKmH() / 100);
+		target[offset + 2] = (float)(calculateVelocityCriticalInKmH() / 100);
+		target[offset + 3] = (float)(getThrustVertical() / MoonLander.GRAVITY);
+		target[offset + 4] = (float)(getFuel() / MoonLander.FUEL_START);
+	}
+}
@@ -1,6 +1,7 @@
 package com.itth.moonlander;
 
 import com.codahale.metrics.Timer;
+import com.itth.moonlander.metrics.TrainingEvents;
 import com.itth.moonlander.reinforce.dl4j.GameState;
 import com.itth.moonlander.reinforce.dl4j.GameStateHelper;
 import com.itth.moonlander.reinforce.network.Action;
@@ -29,17 +30,17 @@ import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 
-public class MoonLander {
+public class MoonLander implements Lander {
   public static final double FUEL_START = 4000.0;
   public static final Random RANDOM = new Random();
   protected final static Logger logger = LogManager.getLogger(MoonLander.class);
   private static final double AIR_DENSITY = 1.225; // kg/m^3
   private static final double DRAG_COEFFICIENT = 1.5;
-  private static final double GRAVITY = 9.81 * 1000; // mm/ms^2
-  private static final double LANDING_VELOCITY_THRESHOLD = 10.0; // km/h
-  private static final double PIXELS_PER_MM = 10.0 / 1000;
-  private static final double THRUST_MAX = GRAVITY * 1.1; // mm/ms^2
-  private static final double THRUST_MIN = GRAVITY * 0.9; // mm/ms^2
+  static final double GRAVITY = 9.81 * 1000; // mm/ms^2
+  static final double LANDING_VELOCITY_THRESHOLD = 10.0; // km/h
+  static final double PIXELS_PER_MM = 10.0 / 1000;
+  static final double THRUST_MAX = GRAVITY * 1.1; // mm/ms^2
+  static final double THRUST_MIN = GRAVITY * 0.9; // mm/ms^2
   // private static final double THRUST_MIN = 0; // mm/ms^2
   final private Map<Long, LineMeter> lineMap = new ConcurrentHashMap<>();
   private final Map<String, Label> map = new ConcurrentHashMap<>();
@@ -248,6 +249,10 @@ public class MoonLander {
   }
 
   public double calculateVelocityCriticalInKmH(double heightInM) {
+    return velocityCriticalInKmH(heightInM);
+  }
+
+  static double velocityCriticalInKmH(double heightInM) {
     final double v = Math.sqrt(2 * THRUST_MAX / 1000 * heightInM) * 3.6;
     return Double.isNaN(v) ? 0 : v;
   }
@@ -363,6 +368,14 @@ public class MoonLander {
     // NetworkTrainingHelper.startTraining(this);
   }
 
+  public void reset(double height, double velocityVertical, double fuel) {
+    resetZero();
+    lander.setY(ground.getBoundsInLocal().getMinY() - lander.getHeight() - height * PIXELS_PER_MM * 1000);
+    velocity = new Point2D(0, velocityVertical / 3600);
+    thrustValue = new Point2D(0, GRAVITY);
+    this.fuel = fuel;
+  }
+
   public void resetRandom() {
     lander.setY(pane.getHeight() - 100);
     // lander.setY(random.nextInt((int)(pane.getHeight() - 50)));
@@ -378,6 +391,8 @@ public class MoonLander {
   }
 
   public void step() {
+    final TrainingEvents.UiDispatch event = new TrainingEvents.UiDispatch();
+    event.begin();
     final CountDownLatch latch = new CountDownLatch(1);
     Platform.runLater(() -> {
           try {
@@ -393,6 +408,8 @@ public class MoonLander {
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
+    event.operation = "step";
+    event.commit();
   }
 
   public void step(long time) {
@@ -1,25 +1,42 @@
 package com.itth.moonlander;
 
-import java.time.Duration;
-import java.util.*;
 import ai.djl.modality.rl.*;
 import ai.djl.modality.rl.env.RlEnv;
 import ai.djl.ndarray.*;
-
-import com.itth.os.realtimechart.RealTimeChart;
-import com.itth.os.realtimechart.RealTimeChart.RealTimeEvent;
-
-public class MoonLanderEnv implements RlEnv {
+import com.codahale.metrics.Timer;
+
+import com.itth.moonlander.metrics.ChartSink;
+import com.itth.moonlander.metrics.EpisodeStats;
+import com.itth.moonlander.metrics.NDMemoryTracker;
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
+import com.itth.moonlander.training.OutcomeEnv;
+import com.itth.moonlander.training.ResizableReplayBuffer;
+
+public class MoonLanderEnv implements OutcomeEnv {
+	private static final Timer sampleTimer = TrainingMetrics.timer(TrainingMetrics.REPLAY_SAMPLE);
+	private static final Timer stepTimer = TrainingMetrics.timer(TrainingMetrics.ENV_STEP);
+	private static final ChartSink.Series REWARD_CHART = ChartSink.getDefault().series("Reward");
 	protected final NDManager manager;
 	private final ActionSpace actionSpace;
-	private final MoonLander moonLander;
-	private final ReplayBuffer replayBuffer;
+	private final Lander moonLander;
+	private final ResizableReplayBuffer replayBuffer;
 	private State state;
-
-	public MoonLanderEnv(MoonLander moonLander, BaseNDManager manager, final int batchSize, final int bufferSize) {
+	private NDList observation;
+	private NDManager observationManager;
+	private NDMemoryTracker memoryTracker;
+	private float noveltyBonus;
+	private MoonLanderReward rewardFunction = MoonLanderReward.V0004;
+	private TransitionLog transitionLog;
+	private ResetSampler resetSampler = ResetSampler.top();
+	private VisitationCounter visitation = new VisitationCounter();
+	private int episode;
+	private int episodeSteps;
+
+	public MoonLanderEnv(Lander moonLander, BaseNDManager manager, final int batchSize, final int bufferSize) {
 		this.moonLander = moonLander;
 		this.manager = manager;
-		replayBuffer = new LruReplayBuffer(batchSize, bufferSize);
+		replayBuffer = new ResizableReplayBuffer(batchSize, bufferSize);
 		state = State.of(moonLander);
 		actionSpace = new ActionSpace();
 		actionSpace.add(new NDList(manager.create(0F)));
@@ -36,52 +53,220 @@ public class MoonLanderEnv implements RlEnv {
 		return actionSpace;
 	}
 
+	/**
+	 Samples a batch from the replay buffer, safe to call while another thread plays.
+	 */
 	public Step[] getBatch() {
-		return replayBuffer.getBatch();
+		final TrainingEvents.BatchSample event = new TrainingEvents.BatchSample();
+		event.begin();
+		final Step[] batch;
+		try (Timer.Context ignored = sampleTimer.time()) {
+			synchronized (replayBuffer) {
+				batch = replayBuffer.getBatch();
+			}
+		}
+		if (event.shouldCommit()) {
+			event.batchSize = batch.length;
+			event.commit();
+		}
+		return batch;
+	}
+
+	/**
+	 Returns the number of steps held by the replay buffer.
+	 */
+	public int getReplaySize() {
+		return replayBuffer.size();
 	}
 
+	public int getReplayCapacity() {
+		return replayBuffer.getCapacity();
+	}
+
+	public ResizableReplayBuffer getReplayBuffer() {
+		return replayBuffer;
+	}
+
+	/**
+	 Returns the observation of the current state, freed once the state changed and the next one is observed.
+	 */
 	public NDList getObservation() {
-		return state.createObservation(manager);
+		if (observation == null) {
+			if (observationManager != null) {
+				observationManager.close();
+			}
+			observationManager = manager.newSubManager();
+			observation = state.createObservation(observationManager);
+		}
+		return observation;
 	}
 
 	public void reset() {
-		moonLander.reset();
-		heightReached.clear();
+		resetSampler.reset(moonLander);
 		state = State.of(moonLander);
+		observation = null;
+		episodeSteps = 0;
+		episode++;
+	}
+
+	/**
+	 Shares a visitation counter with other environments, each one counts on its own by default.
+	 */
+	public void setVisitationCounter(VisitationCounter visitation) {
+		this.visitation = visitation;
+	}
+
+	public VisitationCounter getVisitationCounter() {
+		return visitation;
+	}
+
+	/**
+	 Adds {@code beta / sqrt(visits)} of the reached (height, velocity) cell to the reward, 0 to disable.
+	 */
+	public void setNoveltyBonus(float beta) {
+		noveltyBonus = beta;
+	}
+
+	/**
+	 Sets the start states of new episodes, {@link ResetSampler#top()} by default.
+	 */
+	public void setResetSampler(ResetSampler resetSampler) {
+		this.resetSampler = resetSampler;
+	}
+
+	public ResetSampler getResetSampler() {
+		return resetSampler;
+	}
+
+	/**
+	 Sets the reward function of new steps, {@link MoonLanderReward#V0004} by default.
+	 */
+	public void setRewardFunction(MoonLanderReward rewardFunction) {
+		this.rewardFunction = rewardFunction;
+	}
+
+	public MoonLanderReward getRewardFunction() {
+		return rewardFunction;
+	}
+
+	/**
+	 Appends every training step to the given log, so its rewards can be recomputed for other reward functions.
+	 */
+	public void setTransitionLog(TransitionLog transitionLog) {
+		this.transitionLog = transitionLog;
+	}
+
+	/**
+	 Samples the allocation sites of the step managers for leak hunting.
+	 */
+	public void setMemoryTracker(NDMemoryTracker memoryTracker) {
+		this.memoryTracker = memoryTracker;
+	}
+
+	/**
+	 Returns the number of steps taken since the last reset.
+	 */
+	public int getEpisodeSteps() {
+		return episodeSteps;
+	}
+
+	/**
+	 Returns whether the lander landed without crashing, the outcome of the episode which just ended.
+	 */
+	@Override
+	public boolean isWon() {
+		return moonLander.isLanded() && !moonLander.isCrashed();
+	}
+
+	/**
+	 Appends the episode which just ended.
+
+	 @param reward    the total reward of the episode
+	 @param wallNanos the time the episode took
+	 */
+	public void recordEpisode(EpisodeStats stats, float reward, long wallNanos) {
+		final byte outcome = !moonLander.isLanded() ? EpisodeStats.NONE
+				: isWon() ? EpisodeStats.SUCCESS : EpisodeStats.FAILURE;
+		stats.append(episodeSteps, reward, outcome, (float)moonLander.getVelocityVerticalInKmH(),
+				(float)(MoonLander.FUEL_START - moonLander.getFuel()), wallNanos);
 	}
 
 	public Step step(NDList action, boolean training) {
 		int move = (int)action.singletonOrThrow().getFloat();
 		State preState = state;
 
-		moonLander.input(move);
-		moonLander.step();
+		final TrainingEvents.EnvStep event = new TrainingEvents.EnvStep();
+		event.begin();
+		try (Timer.Context ignored = stepTimer.time()) {
+			moonLander.input(move);
+			moonLander.step();
+		}
+		episodeSteps++;
+		if (event.shouldCommit()) {
+			event.environment = "MoonLander";
+			event.episode = episode;
+			event.step = episodeSteps;
+			event.action = move;
+			event.commit();
+		}
 
 		state = State.of(moonLander);
 		state.turn = -preState.turn;
+		observation = null;
 
-		MoonLanderStep step = new MoonLanderStep(manager.newSubManager(), preState, state, action, actionSpace);
-		if (training) {
+		final NDManager stepManager = manager.newSubManager();
+		if (memoryTracker != null) {
+			memoryTracker.track(stepManager);
+		}
+		final int visits = visitation.visit(state.height, state.velocityVertical);
+		final float bonus = noveltyBonus > 0 ? VisitationCounter.bonus(noveltyBonus, visits) : 0;
+		final float reward = state.getReward(rewardFunction);
+		MoonLanderStep step = new MoonLanderStep(stepManager, true, preState.createObservation(stepManager), state,
+				state.createObservation(stepManager), action, actionSpace, stepManager.create(reward + bonus));
+		if (!training) {
+			return step;
+		}
+		// Validation games keep out of the chart of the training rewards
+		REWARD_CHART.record(reward);
+		synchronized (replayBuffer) {
 			replayBuffer.addStep(step);
 		}
-		return step;
+		if (transitionLog != null) {
+			transitionLog.append(preState.getFeatures(), preState.turn, move, moonLander, step.isDone(), bonus);
+		}
+		// The caller may close its step, only the replay buffer frees the arrays
+		return step.view();
 	}
 
+	/**
+	 A step whose arrays belong to its own manager, closing frees them only if the step owns the manager.
+	 */
 	static final class MoonLanderStep implements RlEnv.Step {
 		private final NDList action;
 		private final ActionSpace actionSpace;
 		private final NDManager manager;
+		private final boolean ownsManager;
+		private final NDList postObservation;
 		private final State postState;
-		private final State preState;
+		private final NDList preObservation;
 		private final NDArray reward;
 
-		private MoonLanderStep(NDManager manager, State preState, State postState, NDList action, ActionSpace actionSpace) {
+		private MoonLanderStep(NDManager manager, boolean ownsManager, NDList preObservation, State postState, NDList postObservation, NDList action, ActionSpace actionSpace, NDArray reward) {
 			this.manager = manager;
+			this.ownsManager = ownsManager;
+			this.preObservation = preObservation;
 			this.postState = postState;
+			this.postObservation = postObservation;
 			this.action = action;
 			this.actionSpace = actionSpace;
-			this.preState = preState;
-			reward = manager.create(postState.getReward(action));
+			this.reward = reward;
+		}
+
+		/**
+		 Returns a step sharing the arrays of this one, which keeps them on close.
+		 */
+		private MoonLanderStep view() {
+			return new MoonLanderStep(manager, false, preObservation, postState, postObservation, action, actionSpace, reward);
 		}
 
 		/**
@@ -89,11 +274,9 @@ public class MoonLanderEnv implements RlEnv {
 		 */
 		@Override
 		public void close() {
-			//preState.close();
-			//postState.close();
-			reward.close();
-			//manager.close();
-
+			if (ownsManager) {
+				manager.close();
+			}
 		}
 
 		/**
@@ -117,7 +300,7 @@ public class MoonLanderEnv implements RlEnv {
 		 */
 		@Override
 		public NDList getPostObservation() {
-			return postState.createObservation(manager);
+			return postObservation;
 		}
 
 		/**
@@ -125,7 +308,7 @@ public class MoonLanderEnv implements RlEnv {
 		 */
 		@Override
 		public NDList getPreObservation() {
-			return preState.createObservation(manager);
+			return preObservation;
 		}
 
 		/**
@@ -153,8 +336,6 @@ public class MoonLanderEnv implements RlEnv {
 		}
 	}
 
-	private static Set<Integer> heightReached = new TreeSet<>();
-
 	/**
 	 A helper to manage the state of the game at a moment in time.
 	 */
@@ -169,7 +350,6 @@ public class MoonLanderEnv implements RlEnv {
 		private final double thrustVertical;
 		private final double velocityVertical;
 		int turn;
-		private volatile NDList observation = null;
 
 		private State(double height, double velocityVertical, double velocityCritical, double thrustVertical, double fuel, boolean landed, int turn, boolean crashed, double seconds) {
 			this.height = height;
@@ -184,7 +364,7 @@ public class MoonLanderEnv implements RlEnv {
 		}
 
 
-		private static State of(MoonLander moonLander) {
+		private static State of(Lander moonLander) {
 			return of(moonLander.calculateLanderHeight(),
 					moonLander.getVelocityVerticalInKmH(),
 					moonLander.calculateVelocityCriticalInKmH(),
@@ -193,93 +373,38 @@ public class MoonLanderEnv implements RlEnv {
 			);
 		}
 
-		private void close() {
-			if (observation != null) {
-				observation.close();
-			}
-		}
-
 		@SuppressWarnings("SameParameterValue")
 		private static State of(double height, double velocityVertical, double velocityCritical, double thrustVertical, double fuel, int turn, final boolean landed, boolean crashed, double seconds) {
 			return new State(height, velocityVertical, velocityCritical, thrustVertical, fuel, landed, turn, crashed, seconds);
 		}
 
 
+		/**
+		 Creates a new observation of this state, owned by the given manager.
+		 */
 		private NDList createObservation(NDManager manager) {
-			if (observation == null) {
-				observation = new NDList(manager.create(new float[]{(float)height, (float)velocityVertical, (float)velocityCritical, (float)thrustVertical, (float) fuel}), manager.create((float)turn));
-			}
-			return observation;
+			return new NDList(manager.create(getFeatures()), manager.create((float)turn));
 		}
 
-		public float getReward(NDList action) {
-			final float reward = getReward0004(action);
-			RealTimeChart.send(RealTimeEvent.of("Reward", Duration.ofMillis((long)reward)));
-			return reward;
+		private float[] getFeatures() {
+			return new float[]{(float)height, (float)velocityVertical, (float)velocityCritical, (float)thrustVertical, (float) fuel};
 		}
 
+		public float getReward(MoonLanderReward reward) {
+			return reward.reward(height, velocityVertical, velocityCritical, fuel, landed, crashed, seconds);
+		}
 
-		public float getReward0004(NDList action) {
-			double reward = 0;
-			//if(! heightReached.contains((int)height)) {
-				heightReached.add((int)height);
-				reward = 100 - height; // / Math.max(1, seconds);
-			//}
-			if(velocityVertical <= 0) {
-				reward = -1;
-			}
-			if(velocityCritical < velocityVertical) {
-				reward = -10;
-			}
-			if(fuel == 0) {
-				reward = -10;
-			}
 
-			if(isLanded()) {
-				reward = isCrashed() ? -100 - velocityVertical: 100 - seconds/10;
-			}
-			return (float) reward;
+		public float getReward0004(NDList action) {
+			return MoonLanderReward.V0004.reward(height, velocityVertical, velocityCritical, fuel, landed, crashed, seconds);
 		}
 
 		public float getReward0003(NDList action) {
-			double reward;
-			if (velocityVertical <= 0) {
-				reward = height;
-			} else if (velocityCritical - velocityVertical < velocityCritical * 0.5) {
-				reward = 2;
-			} else if (velocityCritical > velocityVertical) {
-				reward = 1/height;
-			} else {
-				reward = 0;
-			}
-			if(fuel == 0) {
-				reward = -1000;
-			}
-
-			if(isLanded()) {
-				reward = isCrashed() ? -1000 - velocityVertical: 1000 - seconds/10;
-			}
-			return (float) reward;
+			return MoonLanderReward.V0003.reward(height, velocityVertical, velocityCritical, fuel, landed, crashed, seconds);
 		}
 
 		public float getReward0002(NDList action) {
-			double reward;
-			if (velocityVertical <= 0) {
-				reward = -100;
-			} else if (velocityCritical < velocityVertical) {
-				reward = velocityCritical - velocityVertical;
-			} else if (velocityCritical - velocityVertical < velocityCritical * 0.5) {
-				reward = 1/height;
-			} else {
-				reward = 0;
-			}
-			if(fuel == 0) {
-				reward = -100;
-			}
-			if(isLanded()) {
-				reward = isCrashed() ? -500 - velocityVertical: 500 - seconds;
-			}
-			return (float) reward;
+			return MoonLanderReward.V0002.reward(height, velocityVertical, velocityCritical, fuel, landed, crashed, seconds);
 		}
 
 		//public float getReward(NDList action) {
@@ -0,0 +1,230 @@
+package com.itth.moonlander;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+import ai.djl.Model;
+import ai.djl.basicmodelzoo.basic.Mlp;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.types.*;
+import ai.djl.nn.*;
+import ai.djl.util.Pair;
+import org.slf4j.*;
+
+/**
+ Trains a MoonLander policy with evolution strategies, no backpropagation involved.
+
+ <p>Each iteration evaluates mirrored perturbations of a flat parameter vector on headless
+ {@link MoonLanderSimulation}s in a fork-join pool and moves the parameters along the noise weighted by the
+ centered ranks of the returns. All workers read their noise from one seeded noise table, thus a perturbation is
+ identified by its offset into the table and only offsets and scores cross threads.
+
+ <p>The policy is evaluated in plain Java with the parameter layout of the DJL {@link Mlp} it is saved as: per
+ layer the weights, one row per unit, followed by the biases.
+ */
+public final class MoonLanderEsTrainer {
+
+	public static final String NAME = "MoonLanderEs";
+	private static final int[] LAYERS = {5, 32, 32, 3};
+	private static final int MAX_STEPS = 1000;
+	private static final Logger logger = LoggerFactory.getLogger(MoonLanderEsTrainer.class);
+
+	private MoonLanderEsTrainer() {}
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		runExample();
+	}
+
+	public static void runExample() throws IOException, InterruptedException, ExecutionException {
+		int iterations = 512;
+		int pairs = 128;
+		float sigma = 0.05F;
+		float learningRate = 0.02F;
+		long seed = 42;
+
+		int dimension = parameterCount();
+		float[] noise = createNoiseTable(1 << 24, seed);
+		float[] theta = initialParameters(new Random(seed));
+		Random random = new Random(seed + 1);
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		float best = Float.NEGATIVE_INFINITY;
+		try {
+			for (int iteration = 0; iteration < iterations; iteration++) {
+				int[] offsets = new int[pairs];
+				for (int i = 0; i < pairs; i++) {
+					offsets[i] = random.nextInt(noise.length - dimension);
+				}
+				// Index 2i is the positive, 2i + 1 the negative perturbation of pair i
+				float[] scores = new float[2 * pairs];
+				final float[] center = theta;
+				pool.submit(() -> IntStream.range(0, 2 * pairs).parallel().forEach(k -> {
+					float[] perturbed = new float[dimension];
+					float sign = k % 2 == 0 ? sigma : -sigma;
+					int offset = offsets[k / 2];
+					for (int d = 0; d < dimension; d++) {
+						perturbed[d] = center[d] + sign * noise[offset + d];
+					}
+					scores[k] = evaluate(perturbed);
+				})).get();
+
+				float[] ranks = centeredRanks(scores);
+				float[] step = new float[dimension];
+				for (int i = 0; i < pairs; i++) {
+					float weight = ranks[2 * i] - ranks[2 * i + 1];
+					int offset = offsets[i];
+					for (int d = 0; d < dimension; d++) {
+						step[d] += weight * noise[offset + d];
+					}
+				}
+				float scale = learningRate / (2 * pairs * sigma);
+				float[] next = new float[dimension];
+				for (int d = 0; d < dimension; d++) {
+					next[d] = theta[d] + scale * step[d];
+				}
+				theta = next;
+
+				float score = evaluate(theta);
+				logger.info("Iteration {}: score {}, perturbations mean {}, max {}", iteration, score, mean(scores), max(scores));
+				if (score > best) {
+					best = score;
+					save(theta);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 Plays one game with the greedy policy of the given parameters and returns its total reward.
+	 */
+	static float evaluate(float[] theta) {
+		MoonLanderSimulation lander = new MoonLanderSimulation();
+		float[] observation = new float[LAYERS[0]];
+		float[][] activations = new float[LAYERS.length][];
+		for (int l = 0; l < LAYERS.length; l++) {
+			activations[l] = new float[LAYERS[l]];
+		}
+		float total = 0;
+		for (int step = 0; step < MAX_STEPS && !lander.isDone(); step++) {
+			lander.observe(observation, 0);
+			lander.input(act(theta, observation, activations));
+			lander.step();
+			total += MoonLanderReward.V0004.reward(lander);
+		}
+		return total;
+	}
+
+	private static int act(float[] theta, float[] observation, float[][] activations) {
+		System.arraycopy(observation, 0, activations[0], 0, observation.length);
+		int offset = 0;
+		for (int l = 1; l < LAYERS.length; l++) {
+			float[] input = activations[l - 1];
+			float[] output = activations[l];
+			int biases = offset + LAYERS[l] * LAYERS[l - 1];
+			for (int unit = 0; unit < LAYERS[l]; unit++) {
+				float sum = theta[biases + unit];
+				int row = offset + unit * LAYERS[l - 1];
+				for (int in = 0; in < input.length; in++) {
+					sum += theta[row + in] * input[in];
+				}
+				output[unit] = l < LAYERS.length - 1 ? Math.max(0, sum) : sum;
+			}
+			offset = biases + LAYERS[l];
+		}
+		float[] scores = activations[LAYERS.length - 1];
+		int action = 0;
+		for (int a = 1; a < scores.length; a++) {
+			if (scores[a] > scores[action]) {
+				action = a;
+			}
+		}
+		return action;
+	}
+
+	static int parameterCount() {
+		int count = 0;
+		for (int l = 1; l < LAYERS.length; l++) {
+			count += LAYERS[l] * LAYERS[l - 1] + LAYERS[l];
+		}
+		return count;
+	}
+
+	private static float[] initialParameters(Random random) {
+		float[] theta = new float[parameterCount()];
+		int offset = 0;
+		for (int l = 1; l < LAYERS.length; l++) {
+			float scale = (float)(1 / Math.sqrt(LAYERS[l - 1]));
+			int weights = LAYERS[l] * LAYERS[l - 1];
+			for (int i = 0; i < weights; i++) {
+				theta[offset + i] = (float)random.nextGaussian() * scale;
+			}
+			offset += weights + LAYERS[l];
+		}
+		return theta;
+	}
+
+	private static float[] createNoiseTable(int size, long seed) {
+		float[] noise = new float[size];
+		Random random = new Random(seed);
+		for (int i = 0; i < size; i++) {
+			noise[i] = (float)random.nextGaussian();
+		}
+		return noise;
+	}
+
+	/**
+	 Replaces the scores by their ranks, scaled to [-0.5, 0.5].
+	 */
+	static float[] centeredRanks(float[] scores) {
+		Integer[] order = new Integer[scores.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Float.compare(scores[a], scores[b]));
+		float[] ranks = new float[scores.length];
+		for (int rank = 0; rank < order.length; rank++) {
+			ranks[order[rank]] = order.length == 1 ? 0 : (float)rank / (order.length - 1) - 0.5F;
+		}
+		return ranks;
+	}
+
+	private static float mean(float[] values) {
+		double sum = 0;
+		for (float value : values) {
+			sum += value;
+		}
+		return (float)(sum / values.length);
+	}
+
+	private static float max(float[] values) {
+		float max = Float.NEGATIVE_INFINITY;
+		for (float value : values) {
+			max = Math.max(max, value);
+		}
+		return max;
+	}
+
+	/**
+	 Saves the parameters as a DJL {@link Mlp}, usable as a policy network returning action scores.
+	 */
+	private static void save(float[] theta) throws IOException {
+		try (Model model = Model.newInstance(NAME)) {
+			Block block = new Mlp(LAYERS[0], LAYERS[LAYERS.length - 1], Arrays.copyOfRange(LAYERS, 1, LAYERS.length - 1));
+			block.initialize(model.getNDManager(), DataType.FLOAT32, new Shape(1, LAYERS[0]));
+			int offset = 0;
+			for (Pair<String, Parameter> parameter : block.getParameters()) {
+				NDArray array = parameter.getValue().getArray();
+				int size = Math.toIntExact(array.size());
+				array.set(FloatBuffer.wrap(Arrays.copyOfRange(theta, offset, offset + size)));
+				offset += size;
+			}
+			model.setBlock(block);
+			model.save(Paths.get("build/model"), NAME);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.itth.moonlander;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.stream.IntStream;
+import ai.djl.*;
+import ai.djl.basicmodelzoo.basic.Mlp;
+import ai.djl.ndarray.*;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import ai.djl.training.*;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Adam;
+import ai.djl.training.tracker.Tracker;
+import me.tongfei.progressbar.ProgressBar;
+import org.slf4j.*;
+
+/**
+ Trains a MoonLander policy on-policy with proximal policy optimization on many headless landers at once.
+
+ <p>Every iteration collects {@code rolloutLength} steps of {@code environments} {@link MoonLanderSimulation}s,
+ computes generalized advantage estimates in one backward pass over the primitive rollout arrays and then runs
+ several epochs of clipped mini-batch updates. One network outputs the three action logits followed by the state
+ value. There is no replay buffer, each rollout is dropped after its updates.
+ */
+public final class MoonLanderPpoTrainer {
+
+	public static final Device DEVICE = Device.cpu();
+	public static final String NAME = "MoonLanderPpo";
+	private static final int ACTIONS = 3;
+	private static final float CLIP = 0.2F;
+	private static final float ENTROPY_COEFFICIENT = 0.01F;
+	private static final float GAMMA = 0.99F;
+	private static final float LAMBDA = 0.95F;
+	private static final int OBSERVATION = 5;
+	private static final int OUTPUTS = ACTIONS + 1;
+	private static final float VALUE_COEFFICIENT = 0.5F;
+	private static final Logger logger = LoggerFactory.getLogger(MoonLanderPpoTrainer.class);
+
+	private MoonLanderPpoTrainer() {}
+
+	public static void main(String[] args) throws IOException {
+		runExample();
+	}
+
+	public static Block createBlock() {
+		return new Mlp(OBSERVATION, OUTPUTS, new int[]{64, 64});
+	}
+
+	public static void runExample() throws IOException {
+		int iterations = 256;
+		int environments = 64;
+		int rolloutLength = 128;
+		int epochs = 4;
+		int miniBatchSize = 512;
+		int samples = environments * rolloutLength;
+
+		MoonLanderSimulation[] landers = new MoonLanderSimulation[environments];
+		for (int i = 0; i < environments; i++) {
+			landers[i] = new MoonLanderSimulation();
+		}
+		// The rollout, index t * environments + i
+		float[] observations = new float[samples * OBSERVATION];
+		int[] actions = new int[samples];
+		float[] logProbabilities = new float[samples];
+		float[] values = new float[samples];
+		float[] rewards = new float[samples];
+		boolean[] dones = new boolean[samples];
+		float[] advantages = new float[samples];
+		float[] returns = new float[samples];
+		float[] episodeRewards = new float[environments];
+		float[] current = new float[environments * OBSERVATION];
+		Random random = new Random();
+
+		try (NDManager manager = NDManager.newBaseManager(DEVICE); Model model = Model.newInstance(NAME)) {
+			model.setBlock(createBlock());
+			DefaultTrainingConfig config = new DefaultTrainingConfig(Loss.l2Loss())
+					.optDevices(new Device[]{DEVICE})
+					.optOptimizer(Adam.builder().optLearningRateTracker(Tracker.fixed(0.0003F)).build());
+			try (Trainer trainer = model.newTrainer(config)) {
+				trainer.initialize(new Shape(miniBatchSize, OBSERVATION));
+				for (int iteration = 0; iteration < iterations; iteration++) {
+					int episodes = 0;
+					int landings = 0;
+					float episodeReward = 0;
+					try (ProgressBar bar = new ProgressBar("Iteration " + iteration, rolloutLength)) {
+						for (int t = 0; t < rolloutLength; t++) {
+							for (int i = 0; i < environments; i++) {
+								landers[i].observe(current, i * OBSERVATION);
+							}
+							float[] outputs = evaluate(trainer, manager, current, environments);
+							int base = t * environments;
+							System.arraycopy(current, 0, observations, base * OBSERVATION, current.length);
+							for (int i = 0; i < environments; i++) {
+								int action = sample(outputs, i * OUTPUTS, random);
+								actions[base + i] = action;
+								logProbabilities[base + i] = logSoftmax(outputs, i * OUTPUTS, action);
+								values[base + i] = outputs[i * OUTPUTS + ACTIONS];
+							}
+							IntStream.range(0, environments).parallel().forEach(i -> {
+								MoonLanderSimulation lander = landers[i];
+								lander.input(actions[base + i]);
+								lander.step();
+								rewards[base + i] = MoonLanderReward.V0004.reward(lander);
+								dones[base + i] = lander.isDone();
+							});
+							for (int i = 0; i < environments; i++) {
+								episodeRewards[i] += rewards[base + i];
+								if (dones[base + i]) {
+									episodes++;
+									episodeReward += episodeRewards[i];
+									if (landers[i].isLanded() && !landers[i].isCrashed()) {
+										landings++;
+									}
+									episodeRewards[i] = 0;
+									landers[i].reset();
+								}
+							}
+							bar.step();
+						}
+					}
+					for (int i = 0; i < environments; i++) {
+						landers[i].observe(current, i * OBSERVATION);
+					}
+					float[] outputs = evaluate(trainer, manager, current, environments);
+					float[] bootstrap = new float[environments];
+					for (int i = 0; i < environments; i++) {
+						bootstrap[i] = outputs[i * OUTPUTS + ACTIONS];
+					}
+					computeAdvantages(rewards, values, dones, bootstrap, environments, advantages, returns);
+					normalize(advantages);
+
+					float loss = 0;
+					int[] order = IntStream.range(0, samples).toArray();
+					for (int epoch = 0; epoch < epochs; epoch++) {
+						shuffle(order, random);
+						for (int start = 0; start + miniBatchSize <= samples; start += miniBatchSize) {
+							loss = update(trainer, manager, order, start, miniBatchSize, observations, actions, logProbabilities, advantages, returns);
+						}
+					}
+					logger.info("Iteration {}: episodes {}, landings {}, mean reward {}, loss {}", iteration, episodes, landings,
+							episodes == 0 ? 0 : episodeReward / episodes, loss);
+					model.save(Paths.get("build/model"), NAME);
+				}
+			}
+		}
+	}
+
+	/**
+	 Computes generalized advantage estimates and value targets in a single backward pass over the rollout.
+
+	 @param bootstrap the value estimates of the observations following the last rollout step
+	 */
+	static void computeAdvantages(float[] rewards, float[] values, boolean[] dones, float[] bootstrap, int environments, float[] advantages, float[] returns) {
+		float[] next = bootstrap.clone();
+		float[] gae = new float[environments];
+		for (int index = rewards.length - 1; index >= 0; index--) {
+			int i = index % environments;
+			float notDone = dones[index] ? 0 : 1;
+			float delta = rewards[index] + GAMMA * next[i] * notDone - values[index];
+			gae[i] = delta + GAMMA * LAMBDA * notDone * gae[i];
+			advantages[index] = gae[i];
+			returns[index] = gae[i] + values[index];
+			next[i] = values[index];
+		}
+	}
+
+	private static void normalize(float[] values) {
+		double sum = 0;
+		double squares = 0;
+		for (float value : values) {
+			sum += value;
+			squares += value * value;
+		}
+		double mean = sum / values.length;
+		double deviation = Math.sqrt(Math.max(0, squares / values.length - mean * mean)) + 1e-8;
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float)((values[i] - mean) / deviation);
+		}
+	}
+
+	private static float[] evaluate(Trainer trainer, NDManager manager, float[] observations, int rows) {
+		try (NDManager scope = manager.newSubManager()) {
+			NDArray input = scope.create(observations, new Shape(rows, OBSERVATION));
+			NDArray output = trainer.evaluate(new NDList(input)).singletonOrThrow();
+			output.attach(scope);
+			return output.toFloatArray();
+		}
+	}
+
+	private static float update(Trainer trainer, NDManager manager, int[] order, int start, int size,
+			float[] observations, int[] actions, float[] logProbabilities, float[] advantages, float[] returns) {
+		float[] batchObservations = new float[size * OBSERVATION];
+		float[] batchActions = new float[size * ACTIONS];
+		float[] batchLogProbabilities = new float[size];
+		float[] batchAdvantages = new float[size];
+		float[] batchReturns = new float[size];
+		for (int k = 0; k < size; k++) {
+			int index = order[start + k];
+			System.arraycopy(observations, index * OBSERVATION, batchObservations, k * OBSERVATION, OBSERVATION);
+			batchActions[k * ACTIONS + actions[index]] = 1;
+			batchLogProbabilities[k] = logProbabilities[index];
+			batchAdvantages[k] = advantages[index];
+			batchReturns[k] = returns[index];
+		}
+		try (NDManager scope = manager.newSubManager()) {
+			NDArray input = scope.create(batchObservations, new Shape(size, OBSERVATION));
+			NDArray oneHot = scope.create(batchActions, new Shape(size, ACTIONS));
+			NDArray oldLogProbability = scope.create(batchLogProbabilities);
+			NDArray advantage = scope.create(batchAdvantages);
+			NDArray target = scope.create(batchReturns);
+			float lossValue;
+			try (GradientCollector collector = trainer.newGradientCollector()) {
+				NDArray output = trainer.forward(new NDList(input)).singletonOrThrow();
+				output.attach(scope);
+				NDArray logits = output.get(":, 0:" + ACTIONS);
+				NDArray value = output.get(":, " + ACTIONS);
+				NDArray logProbabilitiesAll = logits.logSoftmax(1);
+				NDArray logProbability = logProbabilitiesAll.mul(oneHot).sum(new int[]{1});
+				NDArray ratio = logProbability.sub(oldLogProbability).exp();
+				NDArray surrogate = NDArrays.minimum(ratio.mul(advantage), ratio.clip(1 - CLIP, 1 + CLIP).mul(advantage));
+				NDArray entropy = logProbabilitiesAll.exp().mul(logProbabilitiesAll).sum(new int[]{1}).mean().neg();
+				NDArray loss = surrogate.mean().neg()
+						.add(value.sub(target).square().mean().mul(VALUE_COEFFICIENT))
+						.sub(entropy.mul(ENTROPY_COEFFICIENT));
+				collector.backward(loss);
+				lossValue = loss.getFloat();
+			}
+			trainer.step();
+			return lossValue;
+		}
+	}
+
+	private static int sample(float[] outputs, int offset, Random random) {
+		float max = Float.NEGATIVE_INFINITY;
+		for (int a = 0; a < ACTIONS; a++) {
+			max = Math.max(max, outputs[offset + a]);
+		}
+		double[] weights = new double[ACTIONS];
+		double sum = 0;
+		for (int a = 0; a < ACTIONS; a++) {
+			weights[a] = Math.exp(outputs[offset + a] - max);
+			sum += weights[a];
+		}
+		double threshold = random.nextDouble() * sum;
+		for (int a = 0; a < ACTIONS - 1; a++) {
+			threshold -= weights[a];
+			if (threshold < 0) {
+				return a;
+			}
+		}
+		return ACTIONS - 1;
+	}
+
+	private static float logSoftmax(float[] outputs, int offset, int action) {
+		float max = Float.NEGATIVE_INFINITY;
+		for (int a = 0; a < ACTIONS; a++) {
+			max = Math.max(max, outputs[offset + a]);
+		}
+		double sum = 0;
+		for (int a = 0; a < ACTIONS; a++) {
+			sum += Math.exp(outputs[offset + a] - max);
+		}
+		return (float)(outputs[offset + action] - max - Math.log(sum));
+	}
+
+	private static void shuffle(int[] values, Random random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = values[i];
+			values[i] = values[j];
+			values[j] = swap;
+		}
+	}
+}
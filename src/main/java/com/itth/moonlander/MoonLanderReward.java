@@ -0,0 +1,77 @@
+package com.itth.moonlander;
+
+/**
+ The reward functions tried for the lander, computed from the state after a step.
+ */
+public enum MoonLanderReward {
+	V0002 {
+		@Override
+		public float reward(double height, double velocityVertical, double velocityCritical, double fuel, boolean landed, boolean crashed, double seconds) {
+			double reward;
+			if (velocityVertical <= 0) {
+				reward = -100;
+			} else if (velocityCritical < velocityVertical) {
+				reward = velocityCritical - velocityVertical;
+			} else if (velocityCritical - velocityVertical < velocityCritical * 0.5) {
+				reward = 1/height;
+			} else {
+				reward = 0;
+			}
+			if(fuel == 0) {
+				reward = -100;
+			}
+			if(landed) {
+				reward = crashed ? -500 - velocityVertical: 500 - seconds;
+			}
+			return (float) reward;
+		}
+	},
+	V0003 {
+		@Override
+		public float reward(double height, double velocityVertical, double velocityCritical, double fuel, boolean landed, boolean crashed, double seconds) {
+			double reward;
+			if (velocityVertical <= 0) {
+				reward = height;
+			} else if (velocityCritical - velocityVertical < velocityCritical * 0.5) {
+				reward = 2;
+			} else if (velocityCritical > velocityVertical) {
+				reward = 1/height;
+			} else {
+				reward = 0;
+			}
+			if(fuel == 0) {
+				reward = -1000;
+			}
+			if(landed) {
+				reward = crashed ? -1000 - velocityVertical: 1000 - seconds/10;
+			}
+			return (float) reward;
+		}
+	},
+	V0004 {
+		@Override
+		public float reward(double height, double velocityVertical, double velocityCritical, double fuel, boolean landed, boolean crashed, double seconds) {
+			double reward = 100 - height; // / Math.max(1, seconds);
+			if(velocityVertical <= 0) {
+				reward = -1;
+			}
+			if(velocityCritical < velocityVertical) {
+				reward = -10;
+			}
+			if(fuel == 0) {
+				reward = -10;
+			}
+			if(landed) {
+				reward = crashed ? -100 - velocityVertical: 100 - seconds/10;
+			}
+			return (float) reward;
+		}
+	};
+
+	public abstract float reward(double height, double velocityVertical, double velocityCritical, double fuel, boolean landed, boolean crashed, double seconds);
+
+	public float reward(Lander lander) {
+		return reward(lander.calculateLanderHeight(), lander.getVelocityVerticalInKmH(), lander.calculateVelocityCriticalInKmH(),
+				lander.getFuel(), lander.isLanded(), lander.isCrashed(), lander.getTimeElapsedInSeconds());
+	}
+}
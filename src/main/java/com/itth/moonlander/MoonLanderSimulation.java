@@ -0,0 +1,116 @@
+package com.itth.moonlander;
+
+import static com.itth.moonlander.MoonLander.*;
+
+/**
+ A headless lander with the physics of {@link MoonLander}, stepped on the caller's thread.
+
+ <p>Positions are kept in the pixels of the game's scene, thus heights, velocities and landings match the JavaFX
+ game for the same inputs. Many simulations can run in parallel, each instance must only be used by one thread.
+ */
+public class MoonLanderSimulation implements Lander {
+	/**
+	 The top of the ground in the default 1000 pixel window, 90 m below the start position.
+	 */
+	public static final double GROUND_Y = 920;
+	private static final double LANDER_SIZE = 20;
+	private static final long STEP_NANOS = 100_000_000;
+
+	private boolean crashed;
+	private double fuel;
+	private boolean landed;
+	private double thrust;
+	private long timeNanos;
+	private double velocity;
+	private double y;
+
+	public MoonLanderSimulation() {
+		reset();
+	}
+
+	public void reset() {
+		y = 0;
+		velocity = 0;
+		thrust = THRUST_MIN;
+		timeNanos = 0;
+		crashed = false;
+		landed = false;
+		fuel = FUEL_START;
+	}
+
+	public void reset(double height, double velocityVertical, double fuel) {
+		reset();
+		y = GROUND_Y - LANDER_SIZE - height * PIXELS_PER_MM * 1000;
+		velocity = velocityVertical / 3600;
+		thrust = GRAVITY;
+		this.fuel = fuel;
+	}
+
+	public void input(int action) {
+		switch (action) {
+			case 0 -> thrust = validateThrust(GRAVITY);
+			case 1 -> thrust = validateThrust(THRUST_MAX);
+			case 2 -> thrust = validateThrust(THRUST_MIN);
+		}
+	}
+
+	private double validateThrust(double value) {
+		return fuel > 0 ? Math.min(THRUST_MAX, Math.max(THRUST_MIN, value)) : 0;
+	}
+
+	public void step() {
+		// Same units as MoonLander.update, the delta is 100 "ms"
+		final double timeDelta = STEP_NANOS / 1_000_000D;
+		velocity += GRAVITY * PIXELS_PER_MM * timeDelta / 1000_000;
+		velocity += -thrust * PIXELS_PER_MM * timeDelta / 1000_000;
+		fuel = Math.max(0, fuel - Math.abs(thrust) / GRAVITY * (timeDelta / 10));
+		y = Math.max(0, y + velocity * timeDelta * 1000 * PIXELS_PER_MM);
+		if (y <= 0) {
+			velocity = 0;
+		}
+		timeNanos += STEP_NANOS;
+		if (y + LANDER_SIZE >= GROUND_Y) {
+			landed = true;
+			crashed = getVelocityVerticalInKmH() > LANDING_VELOCITY_THRESHOLD;
+		}
+	}
+
+	/**
+	 Returns whether the episode is over, by the same rules as {@link MoonLanderEnv}.
+	 */
+	public boolean isDone() {
+		return landed || fuel <= 0 || calculateVelocityCriticalInKmH() < getVelocityVerticalInKmH();
+	}
+
+	public double calculateLanderHeight() {
+		return (GROUND_Y - (y + LANDER_SIZE)) / PIXELS_PER_MM / 1000;
+	}
+
+	public double getVelocityVerticalInKmH() {
+		return velocity * 3600;
+	}
+
+	public double calculateVelocityCriticalInKmH() {
+		return velocityCriticalInKmH(calculateLanderHeight());
+	}
+
+	public double getThrustVertical() {
+		return thrust;
+	}
+
+	public double getFuel() {
+		return fuel;
+	}
+
+	public boolean isLanded() {
+		return landed;
+	}
+
+	public boolean isCrashed() {
+		return crashed;
+	}
+
+	public double getTimeElapsedInSeconds() {
+		return timeNanos / 1000_000_000D;
+	}
+}
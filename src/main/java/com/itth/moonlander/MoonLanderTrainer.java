@@ -13,7 +13,9 @@
 package com.itth.moonlander;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 import ai.djl.*;
 import ai.djl.basicmodelzoo.basic.Mlp;
 import ai.djl.modality.rl.agent.*;
@@ -26,10 +28,24 @@ import ai.djl.training.listener.TrainingListener;
 import ai.djl.training.loss.Loss;
 import ai.djl.training.optimizer.Adam;
 import ai.djl.training.tracker.*;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
 import me.tongfei.progressbar.ProgressBar;
 import org.slf4j.*;
 
+import com.itth.moonlander.metrics.EpisodeStats;
+import com.itth.moonlander.metrics.NDMemoryTracker;
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
 import com.itth.moonlander.samples.TicTacToe;
+import com.itth.moonlander.training.ConvergenceMonitor;
+import com.itth.moonlander.training.MemoryBudget;
+import com.itth.moonlander.training.MemoryGovernor;
+import com.itth.moonlander.training.PerGameTracker;
+import com.itth.moonlander.training.PolicySnapshot;
+import com.itth.moonlander.training.RolloutPipeline;
+import com.itth.moonlander.training.UpdateScheduler;
+import com.itth.moonlander.training.ValidationRunner;
 
 /**
  An example of training reinforcement learning using {@link TicTacToe} and a {@link QAgent}.
@@ -58,12 +74,19 @@ public final class MoonLanderTrainer {
 				.add(new Mlp(7, 1, new int[]{128, 64}));
 	}
 
-	public static DefaultTrainingConfig createConfig(int epoch, int gamesPerEpoch) {
+	/**
+	 Returns the learning rate, a cosine decay over the planned games, stepped by the trainer once per game.
+	 */
+	public static PerGameTracker createLearningRate(int epoch, int gamesPerEpoch) {
 		final CosineTracker cosineTracker = Tracker.cosine()
 				.setMaxUpdates(epoch * gamesPerEpoch)
 				//.setBaseValue(0.001F) // last working with cyclic tracker 10/04/23
 				.setBaseValue(0.1F)
 				.optFinalValue(0.001F).build();
+		return new PerGameTracker(cosineTracker);
+	}
+
+	public static DefaultTrainingConfig createConfig(Tracker learningRate) {
 		//Tracker rateTracker = Tracker.fixed(0.001F);
 		//final Tracker cyclicalTracker = Tracker.warmUp()
 		//				.optWarmUpBeginValue(0.001F).optWarmUpMode(Mode.LINEAR).optWarmUpSteps(512)
@@ -76,7 +99,7 @@ public final class MoonLanderTrainer {
 						//Adam.builder().optLearningRateTracker(Tracker.fixed(0.0001F)).build());
 						//Adam.builder().optLearningRateTracker(Tracker.fixed(0.001F)).build());
 						//Adam.builder().optLearningRateTracker(cosineTracker).build());
-						Adam.builder().optLearningRateTracker(cosineTracker).build());
+						Adam.builder().optLearningRateTracker(learningRate).build());
 	}
 
 	public static TrainingResult runExample(MoonLander moonLander) throws IOException {
@@ -86,28 +109,50 @@ public final class MoonLanderTrainer {
 		int replayBufferSize = 64 * 64;
 		//int gamesPerEpoch = Math.toIntExact(1024);
 		int gamesPerEpoch = Math.toIntExact(16);
-		// Validation is deterministic, thus one game is enough
+		// Validation is deterministic, thus one game is enough, it plays concurrently to the next epoch
 		int validationGamesPerEpoch = 1;
 		float rewardDiscount = 0.9f;
+		// Shared by replay, other tensors and episode statistics, caps the replay buffer size
+		MemoryBudget budget = MemoryBudget.builder().setTotal("4 GiB").build();
+		replayBufferSize = Math.min(replayBufferSize, budget.replayCapacity(MemoryGovernor.estimateStepBytes(6)));
+		// Rounds of updates the playing policy may lag behind, 0 plays and trains sequentially
+		int maxStaleness = 1;
+		// Count-based exploration bonus beta / sqrt(visits) of the (height, velocity) cell, 0 disables it
+		float noveltyBonus = 0;
+		// Trained on, the transition log recomputes the other rewards for comparison, 0 transitions disables it
+		MoonLanderReward rewardFunction = MoonLanderReward.V0004;
+		int transitionLogSize = replayBufferSize * 16;
+		// Training games start below 10 m, 10 m higher each time 80 % of them land, validation always at the top
+		ResetSampler.ReverseCurriculum resetSampler = ResetSampler.reverseCurriculum(10, 10, 0.8f);
 		//Engine engine = Engine.getEngine("PyTorch");
 		//System.out.println("Using backend engine: " + engine.getEngineName());
 		//System.out.println("Found GPU: " + engine.getGpuCount());
 		//try (BaseNDManager manager = (BaseNDManager)NDManager.newBaseManager(Device.cpu())) {
 		try (BaseNDManager manager = (BaseNDManager)NDManager.newBaseManager(DEVICE)) {
-			try (MoonLanderEnv game = new MoonLanderEnv(moonLander, manager, batchSize, replayBufferSize)) {
+			try (MoonLanderEnv game = new MoonLanderEnv(moonLander, manager, batchSize, replayBufferSize);
+					NDMemoryTracker memoryTracker = new NDMemoryTracker(60, 1024)) {
+				memoryTracker.register("env", manager);
+				game.setMemoryTracker(memoryTracker);
+				game.setNoveltyBonus(noveltyBonus);
+				game.setRewardFunction(rewardFunction);
+				game.setResetSampler(resetSampler);
+				TransitionLog transitions = transitionLogSize > 0 ? new TransitionLog(transitionLogSize) : null;
+				game.setTransitionLog(transitions);
 
 				Block block = createBlock();
 
 				try (Model model = Model.newInstance("MoonLander")) {
 					model.setBlock(block);
+					memoryTracker.register("model", (BaseNDManager)model.getNDManager());
 
-					DefaultTrainingConfig config = createConfig(epoch, gamesPerEpoch);
+					PerGameTracker learningRate = createLearningRate(epoch, gamesPerEpoch);
+					DefaultTrainingConfig config = createConfig(learningRate);
 					try (Trainer trainer = model.newTrainer(config)) {
 						trainer.initialize(
 								new Shape(batchSize, 5), new Shape(batchSize), new Shape(batchSize));
 						trainer.notifyListeners(listener -> listener.onTrainingBegin(trainer));
-						// Constructs the agent to train and play with
-						RlAgent agent = new QAgent(trainer, rewardDiscount);
+						// Constructs the agent to train, the games are played on a snapshot of its parameters
+						RlAgent learner = new QAgent(trainer, rewardDiscount);
 						Tracker exploreRate =
 								LinearTracker.builder()
 										.setBaseValue(0.90f)
@@ -120,56 +165,120 @@ public final class MoonLanderTrainer {
 										.optBaseValue(0.1F)
 										.optMaxValue(0.9F)
 										.build();
-						Tracker tracker = exploreCyclic;
-						agent = new EpsilonGreedy(agent, tracker);
+						// Relative to the spread of the Q-values, explores among the promising actions
+						Tracker temperature =
+								LinearTracker.builder()
+										.setBaseValue(1.0f)
+										.optSlope(-1f / (epoch * gamesPerEpoch * 256))
+										.optMinValue(0.05f)
+										.build();
+						ExplorationStrategy strategy = ExplorationStrategy.boltzmann(temperature);
+						//ExplorationStrategy strategy = ExplorationStrategy.epsilonGreedy(exploreCyclic);
+						// Long episodes yield far more data than one batch per game can use
+						UpdateScheduler scheduler = UpdateScheduler.builder()
+								.setUpdatesPerInterval(1)
+								.setStepsPerInterval(32)
+								.optMinUpdates(1)
+								.build();
+						PolicySnapshot snapshot = new PolicySnapshot(MoonLanderTrainer::createBlock, DEVICE,
+								new Shape(batchSize, 5), new Shape(batchSize), new Shape(batchSize));
+						ExploringAgent agent = new ExploringAgent(learner, snapshot, strategy);
 
+						TrainingMetrics.startReporters(Paths.get("build/metrics"), 10);
+						TrainingMetrics.gauge(TrainingMetrics.REPLAY_FILL, () -> (float)game.getReplaySize() / game.getReplayCapacity());
+						TrainingMetrics.gauge(TrainingMetrics.EPSILON, () -> agent.getMetrics().getEpsilon());
+						Meter games = TrainingMetrics.meter(TrainingMetrics.ENV_GAMES);
+
+						Files.createDirectories(Paths.get("build/stats"));
+						EpisodeStats episodes = new EpisodeStats(Math.min(1 << 20, MemoryGovernor.statsRows(budget)), Paths.get("build/stats/MoonLander-episodes.bin"));
+						MemoryGovernor governor = new MemoryGovernor(budget, memoryTracker, "env", game.getReplayBuffer(), episodes);
+						// Only a rollout overlapping the updates can wait for the learner to free tensors
+						governor.setPausing(maxStaleness > 0);
+
+						// Stops early once validation saturated, plateaued or collapsed
+						ConvergenceMonitor monitor = ConvergenceMonitor.builder()
+								.setGamesPerEpoch(gamesPerEpoch)
+								.optMinGamesPerEpoch(gamesPerEpoch / 4)
+								.optMaxGamesPerEpoch(gamesPerEpoch * 4)
+								.optPatience(8)
+								.build();
 						float validationWinRate = 0;
 						float trainWinRate = 0;
+						int pendingSteps = 0;
+						CompletableFuture<ValidationRunner.Result> validation = null;
+						try (snapshot; RolloutPipeline pipeline = new RolloutPipeline(snapshot, block, maxStaleness);
+								ValidationRunner validator = ValidationRunner.builder()
+										.setBlockFactory(MoonLanderTrainer::createBlock)
+										.setInputShapes(new Shape(1, 5), new Shape(1), new Shape(1))
+										.setEnvironment(validationManager -> new MoonLanderEnv(new MoonLanderSimulation(), validationManager, 1, 1))
+										.optGames(validationGamesPerEpoch)
+										.build()) {
 							for (int i = 0; i < epoch; i++) {
+								final int epochGames = monitor.getGamesPerEpoch();
 								int trainingWins = 0;
-								try (ProgressBar bar = new ProgressBar("Epoch " + i, gamesPerEpoch)) {
-									for (int j = 0; j < gamesPerEpoch; j++) {
-										float result = game.runEnvironment(agent, true);
-										Step[] batchSteps = game.getBatch();
-										agent.trainBatch(batchSteps);
-										trainer.step();
+								try (ProgressBar bar = new ProgressBar("Epoch " + i, epochGames)) {
+									for (int j = 0; j < epochGames; j++) {
+										// Samples the updates for the previous game before the next one fills the replay
+										final Step[][] batches = scheduler.prepare(pendingSteps, game::getBatch);
+										boolean won = pipeline.run(() -> play(game, agent, episodes, governor),
+												() -> scheduler.train(learner, trainer, batches));
+										pendingSteps = game.getEpisodeSteps();
+										learningRate.gamePlayed();
+										games.mark();
 										bar.step();
 										// Record if the game was won
-										if (result > 0) {
+										if (won) {
 											trainingWins++;
 										}
 										constantTracker.subtract(0.0025f);
-										moonLander.fireInformation("Epsilon", tracker.getNewValue(0));
-										moonLander.fireInformation("Action", ((EpsilonGreedy) agent).getMap());
 										//System.err.println("epsilon: " + exploreCyclic.getNewValue(0));
-										//manager.debugDump(2);
 									}
-									save(model);
+									save(model, "MoonLander");
+								}
+								ExplorationMetrics metrics = agent.getMetrics();
+								moonLander.fireInformation("Epsilon", metrics.getEpsilon());
+								moonLander.fireInformation("Action", metrics);
+								logger.info("Exploration: {}, visited cells: {}", metrics, game.getVisitationCounter().getVisitedCells());
+								trainWinRate = (float)trainingWins / epochGames;
+								logger.info("Training wins: {}, updates per step: {}", trainWinRate, scheduler.getUpdateToDataRatio());
+								logger.info("Start height: up to {} m, success rate {}", resetSampler.getLevel(), resetSampler.getSuccessRate());
+								logger.info("Episodes: {}", episodes.summary(epochGames * 4));
+								if (transitions != null) {
+									logger.info("Rewards: {}", transitions.summary());
 								}
-								trainWinRate = (float)trainingWins / gamesPerEpoch;
-								logger.info("Training wins: {}", trainWinRate);
 
 								trainer.notifyListeners(listener -> listener.onEpoch(trainer));
 
-								// Counts win rate after playing {validationGamesPerEpoch} games
-								int validationWins = 0;
-								for (int j = 0; j < validationGamesPerEpoch; j++) {
-									float result = game.runEnvironment(agent, false);
-									if (result > 0) {
-										validationWins++;
+								// Decides on the validation of the previous epoch, its games played while this epoch trained
+								if (validation != null) {
+									ValidationRunner.Result validated = validation.join();
+									validation = null;
+									validationWinRate = validated.getWinRate();
+									if (decide(monitor, validator, validated)) {
+										break;
 									}
 								}
-
-								validationWinRate = (float)validationWins / validationGamesPerEpoch;
-								logger.info("Validation wins: {}", validationWinRate);
+								validation = validator.validate(block);
 							}
+							// The validation of the last epoch may still improve on the best model
+							if (validation != null) {
+								ValidationRunner.Result validated = validation.join();
+								validationWinRate = validated.getWinRate();
+								decide(monitor, validator, validated);
+							}
+						}
+						scheduler.train(learner, trainer, scheduler.prepare(pendingSteps, game::getBatch));
+						episodes.flush();
+						if (transitions != null) {
+							transitions.write(Paths.get("build/stats/MoonLander-transitions.bin"));
+						}
 
 						trainer.notifyListeners(listener -> listener.onTrainingEnd(trainer));
 
 						TrainingResult trainingResult = trainer.getTrainingResult();
 						trainingResult.getEvaluations().put("validate_winRate", validationWinRate);
 						trainingResult.getEvaluations().put("train_winRate", trainWinRate);
-						save(model);
+						save(model, "MoonLander");
 						return trainingResult;
 					}
 				}
@@ -178,8 +287,43 @@ public final class MoonLanderTrainer {
 	}
 
 
-	private static void save(Model model) throws IOException {
-		model.save(Paths.get("build/model"), "MoonLander");
+	/**
+	 Plays one training game within the memory budget and records its outcome.
+
+	 @return whether the lander landed without crashing
+	 */
+	private static boolean play(MoonLanderEnv game, RlAgent agent, EpisodeStats episodes, MemoryGovernor governor) {
+		governor.admit();
+		final long start = System.nanoTime();
+		final float result = game.runEnvironment(agent, true);
+		game.recordEpisode(episodes, result, System.nanoTime() - start);
+		game.getResetSampler().update(game.isWon());
+		return game.isWon();
+	}
+
+	/**
+	 Lets the monitor decide on a validation result and keeps the validated parameters if they improved.
+
+	 @return whether training stops
+	 */
+	private static boolean decide(ConvergenceMonitor monitor, ValidationRunner validator, ValidationRunner.Result validated) throws IOException {
+		logger.info("Validation wins: {}", validated);
+		ConvergenceMonitor.Decision decision = monitor.update(validated.getWinRate(), validated.getMeanReward());
+		logger.info("Convergence: {}", monitor.getReason());
+		if (monitor.isImproved()) {
+			validator.save(Paths.get("build/model"), "MoonLander-best");
+		}
+		return decision == ConvergenceMonitor.Decision.STOP;
+	}
+
+	private static void save(Model model, String name) throws IOException {
+		final TrainingEvents.Save event = new TrainingEvents.Save();
+		event.begin();
+		try (Timer.Context ignored = TrainingMetrics.timer(TrainingMetrics.CHECKPOINT_SAVE).time()) {
+			model.save(Paths.get("build/model"), name);
+		}
+		event.model = name;
+		event.commit();
 		System.err.println("model saved: " + Paths.get("build/model"));
 	}
 
@@ -0,0 +1,151 @@
+package com.itth.moonlander;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ Draws the start state of an episode, the height, vertical velocity and fuel the lander is reset to.
+
+ <p>Starting closer to the ground lets landings appear in the replay within the first games instead of after
+ thousands of hover steps. Velocities are drawn as a fraction of the critical velocity at the drawn height, so a
+ start is never lost before the first action.
+ */
+public interface ResetSampler {
+	/**
+	 The height of the top start position in m.
+	 */
+	double MAX_HEIGHT = 90;
+
+	/**
+	 Resets the lander to a drawn start state.
+	 */
+	void reset(Lander lander);
+
+	/**
+	 Reports the outcome of an episode started by this sampler, ignored unless the distribution adapts to it.
+	 */
+	default void update(boolean success) {
+	}
+
+	/**
+	 Always starts at the top with zero velocity and full fuel, like {@link Lander#reset()}.
+	 */
+	static ResetSampler top() {
+		return Lander::reset;
+	}
+
+	/**
+	 Draws height, velocity and fuel uniformly.
+
+	 @param minHeight   the lowest start in m
+	 @param maxHeight   the highest start in m, at most {@link #MAX_HEIGHT}
+	 @param maxVelocity the highest velocity as a fraction of the critical velocity at the drawn height
+	 @param minFuel     the least fuel as a fraction of {@link MoonLander#FUEL_START}, full tanks for 1
+	 */
+	static ResetSampler uniform(double minHeight, double maxHeight, double maxVelocity, double minFuel) {
+		if (minHeight < 0 || maxHeight > MAX_HEIGHT || minHeight > maxHeight) {
+			throw new IllegalArgumentException("heights must be within [0, " + MAX_HEIGHT + "]");
+		}
+		return lander -> {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			final double height = minHeight + random.nextDouble() * (maxHeight - minHeight);
+			reset(lander, height, random.nextDouble() * maxVelocity, minFuel + random.nextDouble() * (1 - minFuel));
+		};
+	}
+
+	/**
+	 Draws uniformly from a fixed bank of start states, e.g. states where earlier policies failed.
+
+	 @param states rows of height in m, velocity in km/h and fuel in l
+	 */
+	static ResetSampler bank(double[][] states) {
+		if (states.length == 0) {
+			throw new IllegalArgumentException("the bank must not be empty");
+		}
+		final double[][] copy = new double[states.length][];
+		for (int i = 0; i < states.length; i++) {
+			if (states[i].length != 3) {
+				throw new IllegalArgumentException("a state is height, velocity and fuel");
+			}
+			copy[i] = states[i].clone();
+		}
+		return lander -> {
+			final double[] state = copy[ThreadLocalRandom.current().nextInt(copy.length)];
+			lander.reset(state[0], state[1], state[2]);
+		};
+	}
+
+	/**
+	 Starts near the ground and moves the highest start upward as the rate of landings rises.
+
+	 @see ReverseCurriculum
+	 */
+	static ReverseCurriculum reverseCurriculum(double startHeight, double heightStep, float successThreshold) {
+		return new ReverseCurriculum(startHeight, heightStep, successThreshold);
+	}
+
+	/**
+	 Resets the lander to a velocity given as fraction of the critical velocity and fuel as fraction of full tanks.
+	 */
+	private static void reset(Lander lander, double height, double velocity, double fuel) {
+		lander.reset(height, velocity * MoonLander.velocityCriticalInKmH(height), fuel * MoonLander.FUEL_START);
+	}
+
+	/**
+	 Draws the height uniformly between {@link #MIN_HEIGHT} and the current level and the velocity up to half the
+	 critical velocity, with full tanks. A success is a landing without crash, not a positive reward. The success
+	 rate is an exponential average over roughly the last 32 episodes. Once it reaches the threshold, the level rises
+	 by the step, up to {@link #MAX_HEIGHT}, and the average starts over.
+	 */
+	final class ReverseCurriculum implements ResetSampler {
+		/**
+		 The lowest start in m, some steps above the ground, so no start counts as landing without a decision.
+		 */
+		public static final double MIN_HEIGHT = 5;
+		private static final float RATE = 1 / 32f;
+		private final double heightStep;
+		private final float successThreshold;
+		private int episodes;
+		private double level;
+		private float successRate;
+
+		private ReverseCurriculum(double startHeight, double heightStep, float successThreshold) {
+			if (startHeight <= MIN_HEIGHT || startHeight > MAX_HEIGHT || heightStep <= 0) {
+				throw new IllegalArgumentException("start height must be within (" + MIN_HEIGHT + ", " + MAX_HEIGHT + "], step positive");
+			}
+			level = startHeight;
+			this.heightStep = heightStep;
+			this.successThreshold = successThreshold;
+		}
+
+		@Override
+		public void reset(Lander lander) {
+			final double height;
+			synchronized (this) {
+				height = MIN_HEIGHT + ThreadLocalRandom.current().nextDouble() * (level - MIN_HEIGHT);
+			}
+			ResetSampler.reset(lander, height, ThreadLocalRandom.current().nextDouble() * 0.5, 1);
+		}
+
+		@Override
+		public synchronized void update(boolean success) {
+			episodes++;
+			successRate += ((success ? 1 : 0) - successRate) * RATE;
+			if (episodes >= 1 / RATE && successRate >= successThreshold && level < MAX_HEIGHT) {
+				level = Math.min(MAX_HEIGHT, level + heightStep);
+				episodes = 0;
+				successRate = 0;
+			}
+		}
+
+		/**
+		 Returns the highest start height in m.
+		 */
+		public synchronized double getLevel() {
+			return level;
+		}
+
+		public synchronized float getSuccessRate() {
+			return successRate;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package com.itth.moonlander;
+
+import java.io.*;
+import java.nio.file.*;
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.modality.rl.env.RlEnv;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.util.RandomUtils;
+
+/**
+ The raw lander state before and after every transition in primitive columns, so rewards can be recomputed for any
+ {@link MoonLanderReward} without simulating again.
+
+ <p>The latest {@code capacity} transitions are kept in a ring. {@link #relabel(MoonLanderReward)} computes the
+ rewards of all of them in one pass over the columns, {@link #getBatch} samples steps whose reward is computed by
+ the given variant at sample time. Both add the novelty bonus recorded with the transition, as the environment does.
+ {@link #write(Path)} stores the transitions as a magic number and the row count followed by the columns, each big
+ endian in its primitive type, {@link #read(Path)} loads them for a relabel job.
+ */
+public class TransitionLog {
+	/**
+	 The bytes of one row in memory and in the file.
+	 */
+	public static final int ROW_BYTES = 5 * 4 + 1 + 1 + 6 * 4 + 1 + 4;
+	private static final int MAGIC = 0x544c4731;
+	private static final byte LANDED = 1;
+	private static final byte CRASHED = 2;
+	private static final byte DONE = 4;
+	private final byte[] action;
+	private final float[] bonus;
+	private final float[] fuel;
+	private final byte[] flags;
+	private final float[] height;
+	private final float[] preFuel;
+	private final float[] preHeight;
+	private final float[] preThrust;
+	private final byte[] preTurn;
+	private final float[] preVelocityCritical;
+	private final float[] preVelocityVertical;
+	private final float[] seconds;
+	private final float[] thrust;
+	private final float[] velocityCritical;
+	private final float[] velocityVertical;
+	private int first;
+	private int size;
+
+	/**
+	 Constructs a {@link TransitionLog}.
+
+	 @param capacity the number of transitions to keep, the oldest are replaced first
+	 */
+	public TransitionLog(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		preHeight = new float[capacity];
+		preVelocityVertical = new float[capacity];
+		preVelocityCritical = new float[capacity];
+		preThrust = new float[capacity];
+		preFuel = new float[capacity];
+		preTurn = new byte[capacity];
+		action = new byte[capacity];
+		height = new float[capacity];
+		velocityVertical = new float[capacity];
+		velocityCritical = new float[capacity];
+		thrust = new float[capacity];
+		fuel = new float[capacity];
+		seconds = new float[capacity];
+		flags = new byte[capacity];
+		bonus = new float[capacity];
+	}
+
+	/**
+	 Loads a file written by {@link #write(Path)}.
+	 */
+	public static TransitionLog read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a transition log file: " + file);
+			}
+			final int count = in.readInt();
+			final TransitionLog log = new TransitionLog(Math.max(1, count));
+			for (int i = 0; i < count; i++) log.preHeight[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.preVelocityVertical[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.preVelocityCritical[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.preThrust[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.preFuel[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.preTurn[i] = in.readByte();
+			for (int i = 0; i < count; i++) log.action[i] = in.readByte();
+			for (int i = 0; i < count; i++) log.height[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.velocityVertical[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.velocityCritical[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.thrust[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.fuel[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.seconds[i] = in.readFloat();
+			for (int i = 0; i < count; i++) log.flags[i] = in.readByte();
+			for (int i = 0; i < count; i++) log.bonus[i] = in.readFloat();
+			log.size = count;
+			return log;
+		}
+	}
+
+	/**
+	 Appends one transition, the observation before it, the action and the raw state after it.
+
+	 @param pre   the observation before the step: height, vertical velocity, critical velocity, thrust and fuel
+	 @param bonus the novelty bonus the environment added to the reward
+	 */
+	public synchronized void append(float[] pre, int preTurn, int action, Lander lander, boolean done, float bonus) {
+		final int row;
+		if (size == this.action.length) {
+			row = first;
+			first = (first + 1) % this.action.length;
+		} else {
+			row = (first + size) % this.action.length;
+			size++;
+		}
+		preHeight[row] = pre[0];
+		preVelocityVertical[row] = pre[1];
+		preVelocityCritical[row] = pre[2];
+		preThrust[row] = pre[3];
+		preFuel[row] = pre[4];
+		this.preTurn[row] = (byte)preTurn;
+		this.action[row] = (byte)action;
+		height[row] = (float)lander.calculateLanderHeight();
+		velocityVertical[row] = (float)lander.getVelocityVerticalInKmH();
+		velocityCritical[row] = (float)lander.calculateVelocityCriticalInKmH();
+		thrust[row] = (float)lander.getThrustVertical();
+		fuel[row] = (float)lander.getFuel();
+		seconds[row] = (float)lander.getTimeElapsedInSeconds();
+		flags[row] = (byte)((lander.isLanded() ? LANDED : 0) | (lander.isCrashed() ? CRASHED : 0) | (done ? DONE : 0));
+		this.bonus[row] = bonus;
+	}
+
+	/**
+	 Returns the number of transitions held.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 Computes the rewards of all held transitions with the given variant, oldest first.
+	 */
+	public synchronized float[] relabel(MoonLanderReward reward) {
+		final float[] rewards = new float[size];
+		for (int i = 0; i < size; i++) {
+			rewards[i] = reward(reward, (first + i) % action.length);
+		}
+		return rewards;
+	}
+
+	/**
+	 Returns the mean reward per transition of every variant over the same transitions, for logging.
+	 */
+	public String summary() {
+		final StringBuilder summary = new StringBuilder("transitions ").append(size());
+		for (MoonLanderReward reward : MoonLanderReward.values()) {
+			double sum = 0;
+			final float[] rewards = relabel(reward);
+			for (float value : rewards) {
+				sum += value;
+			}
+			summary.append(String.format(", %s mean %.2f", reward, rewards.length == 0 ? 0 : sum / rewards.length));
+		}
+		return summary.toString();
+	}
+
+	/**
+	 Samples {@code batchSize} transitions with replacement, none while the log is empty.
+
+	 @param reward      the variant to compute the rewards with
+	 @param actionSpace the action space of the environment which recorded the transitions
+	 @param manager     the manager of all arrays of the steps, e.g. the one of the batch they are stacked into
+	 */
+	public synchronized RlEnv.Step[] getBatch(int batchSize, MoonLanderReward reward, ActionSpace actionSpace, NDManager manager) {
+		if (size == 0) {
+			return new RlEnv.Step[0];
+		}
+		final RlEnv.Step[] batch = new RlEnv.Step[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			final int row = (first + RandomUtils.nextInt(size)) % action.length;
+			final NDList pre = new NDList(manager.create(new float[]{preHeight[row], preVelocityVertical[row], preVelocityCritical[row], preThrust[row], preFuel[row]}),
+					manager.create((float)preTurn[row]));
+			final NDList post = new NDList(manager.create(new float[]{height[row], velocityVertical[row], velocityCritical[row], thrust[row], fuel[row]}),
+					manager.create((float)-preTurn[row]));
+			batch[i] = new LoggedStep(pre, actionSpace.get(action[row]), post, manager.create(reward(reward, row)), (flags[row] & DONE) != 0, actionSpace);
+		}
+		return batch;
+	}
+
+	/**
+	 Writes all held transitions, oldest first.
+	 */
+	public synchronized void write(Path file) throws IOException {
+		final Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) out.writeFloat(preHeight[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(preVelocityVertical[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(preVelocityCritical[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(preThrust[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(preFuel[row(i)]);
+			for (int i = 0; i < size; i++) out.writeByte(preTurn[row(i)]);
+			for (int i = 0; i < size; i++) out.writeByte(action[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(height[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(velocityVertical[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(velocityCritical[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(thrust[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(fuel[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(seconds[row(i)]);
+			for (int i = 0; i < size; i++) out.writeByte(flags[row(i)]);
+			for (int i = 0; i < size; i++) out.writeFloat(bonus[row(i)]);
+		}
+	}
+
+	private int row(int index) {
+		return (first + index) % action.length;
+	}
+
+	private float reward(MoonLanderReward reward, int row) {
+		return reward.reward(height[row], velocityVertical[row], velocityCritical[row], fuel[row],
+				(flags[row] & LANDED) != 0, (flags[row] & CRASHED) != 0, seconds[row]) + bonus[row];
+	}
+
+	/**
+	 A transition rebuilt from the log, its arrays belong to the manager given for the batch.
+	 */
+	private static final class LoggedStep implements RlEnv.Step {
+		private final NDList action;
+		private final ActionSpace actionSpace;
+		private final boolean done;
+		private final NDList postObservation;
+		private final NDList preObservation;
+		private final NDArray reward;
+
+		private LoggedStep(NDList preObservation, NDList action, NDList postObservation, NDArray reward, boolean done, ActionSpace actionSpace) {
+			this.preObservation = preObservation;
+			this.action = action;
+			this.postObservation = postObservation;
+			this.reward = reward;
+			this.done = done;
+			this.actionSpace = actionSpace;
+		}
+
+		@Override
+		public NDList getPreObservation() {
+			return preObservation;
+		}
+
+		@Override
+		public NDList getAction() {
+			return action;
+		}
+
+		@Override
+		public NDList getPostObservation() {
+			return postObservation;
+		}
+
+		@Override
+		public ActionSpace getPostActionSpace() {
+			return actionSpace;
+		}
+
+		@Override
+		public NDArray getReward() {
+			return reward;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 Keeps the arrays, they are freed with the manager of the batch.
+		 */
+		@Override
+		public void close() {
+		}
+	}
+}
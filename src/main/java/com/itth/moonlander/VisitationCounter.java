@@ -0,0 +1,93 @@
+package com.itth.moonlander;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ Counts the visits of discretized (height, vertical velocity) cells, for count-based exploration.
+
+ <p>Visiting is one atomic increment without allocation, thus a counter can be owned by one environment or be
+ shared by parallel ones. Values outside of the ranges fall into the border cells.
+ */
+public class VisitationCounter {
+	private final AtomicIntegerArray counts;
+	private final int heightCells;
+	private final double heightCellSize;
+	private final double velocityCellSize;
+	private final int velocityCells;
+	private final double velocityMin;
+
+	/**
+	 Constructs a {@link VisitationCounter} of 1 m height cells up to 100 m and 5 km/h velocity cells from -50 up to
+	 150 km/h.
+	 */
+	public VisitationCounter() {
+		this(100, 100, 40, -50, 150);
+	}
+
+	/**
+	 Constructs a {@link VisitationCounter}.
+
+	 @param heightCells   the number of height cells from 0 to the maximum height
+	 @param heightMax     the maximum height in m
+	 @param velocityCells the number of velocity cells
+	 @param velocityMin   the minimum vertical velocity in km/h, negative is upwards
+	 @param velocityMax   the maximum vertical velocity in km/h
+	 */
+	public VisitationCounter(int heightCells, double heightMax, int velocityCells, double velocityMin, double velocityMax) {
+		this.heightCells = heightCells;
+		this.velocityCells = velocityCells;
+		this.velocityMin = velocityMin;
+		heightCellSize = heightMax / heightCells;
+		velocityCellSize = (velocityMax - velocityMin) / velocityCells;
+		counts = new AtomicIntegerArray(heightCells * velocityCells);
+	}
+
+	/**
+	 Counts a visit.
+
+	 @return the number of visits of the cell including this one
+	 */
+	public int visit(double height, double velocity) {
+		return counts.incrementAndGet(cell(height, velocity));
+	}
+
+	public int getCount(double height, double velocity) {
+		return counts.get(cell(height, velocity));
+	}
+
+	/**
+	 Returns the number of cells visited at least once.
+	 */
+	public int getVisitedCells() {
+		int visited = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			if (counts.get(i) > 0) {
+				visited++;
+			}
+		}
+		return visited;
+	}
+
+	/**
+	 The bonus {@code beta / sqrt(count)} for a cell visited {@code count} times.
+	 */
+	public static float bonus(float beta, int count) {
+		return count <= 0 ? beta : (float)(beta / Math.sqrt(count));
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+	}
+
+	private int cell(double height, double velocity) {
+		final int h = clamp((int)(height / heightCellSize), heightCells);
+		final int v = clamp((int)Math.floor((velocity - velocityMin) / velocityCellSize), velocityCells);
+		return h * velocityCells + v;
+	}
+
+	private static int clamp(int index, int cells) {
+		return Math.max(0, Math.min(cells - 1, index));
+	}
+}
@@ -0,0 +1,209 @@
+package com.itth.moonlander.metrics;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.*;
+
+import com.itth.os.realtimechart.RealTimeChart;
+import com.itth.os.realtimechart.RealTimeChart.RealTimeEvent;
+
+/**
+ Takes chart values from the simulation without blocking and forwards aggregates at a fixed rate.
+
+ <p>Recording a value writes one float into the ring buffer of its series. A daemon thread drains all series once
+ per period and hands mean, min, max and count of the window to the target, by default {@link RealTimeChart}.
+ Values overwritten before the thread drained them are only counted as dropped, the chart shows a sample then, as
+ are values still being written while the thread drains.
+ */
+public class ChartSink implements AutoCloseable {
+	protected final static Logger logger = LogManager.getLogger(ChartSink.class);
+	private static volatile ChartSink defaultSink;
+	private final int capacity;
+	private final ScheduledExecutorService executor;
+	private final Map<String, Series> series = new ConcurrentHashMap<>();
+	private final Consumer<Window> target;
+
+	/**
+	 Constructs a {@link ChartSink}.
+
+	 @param periodMillis the length of a window
+	 @param capacity     the values buffered per series and window, rounded up to a power of two
+	 @param target       receives the aggregate of every series with values, on the sink thread
+	 */
+	public ChartSink(long periodMillis, int capacity, Consumer<Window> target) {
+		this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.target = target;
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "chart-sink");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(this::drain, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 The sink of the simulations, forwarding every 250 ms to {@link RealTimeChart}.
+	 */
+	public static ChartSink getDefault() {
+		if (defaultSink == null) {
+			synchronized (ChartSink.class) {
+				if (defaultSink == null) {
+					defaultSink = new ChartSink(250, 1 << 16, ChartSink::toRealTimeChart);
+				}
+			}
+		}
+		return defaultSink;
+	}
+
+	/**
+	 Sends mean, min and max of the window, the chart only takes durations thus the values are rounded to millis.
+	 */
+	public static void toRealTimeChart(Window window) {
+		RealTimeChart.send(RealTimeEvent.of(window.name, Duration.ofMillis(Math.round(window.mean))));
+		RealTimeChart.send(RealTimeEvent.of(window.name + " min", Duration.ofMillis(Math.round(window.min))));
+		RealTimeChart.send(RealTimeEvent.of(window.name + " max", Duration.ofMillis(Math.round(window.max))));
+	}
+
+	public Series series(String name) {
+		return series(name, 1);
+	}
+
+	/**
+	 @param scale the factor applied to the aggregates, e.g. to make fractions visible in millis
+	 */
+	public Series series(String name, float scale) {
+		return series.computeIfAbsent(name, key -> new Series(key, capacity, scale));
+	}
+
+	private void drain() {
+		try {
+			for (Series current : series.values()) {
+				final Window window = current.drain();
+				if (window != null) {
+					target.accept(window);
+				}
+			}
+		} catch (Exception e) {
+			logger.error(e, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 A named ring buffer, safe to write from any number of threads.
+
+	 <p>A writer claims an index and then publishes the value together with the index in one atomic write to the
+	 slot, its upper half the index plus one and its lower half the float bits. The drain only takes a slot whose
+	 index is the one it expects, so it never reads a claimed slot before the value arrived, nor a value of a writer
+	 which lapped the ring meanwhile. Indices are compared modulo 2^32, far beyond the capacity.
+	 */
+	public static final class Series {
+		private final long mask;
+		private final String name;
+		private long read;
+		private final float scale;
+		private final AtomicLongArray slots;
+		private final AtomicLong written = new AtomicLong();
+		private long dropped;
+
+		private Series(String name, int capacity, float scale) {
+			this.name = name;
+			this.scale = scale;
+			slots = new AtomicLongArray(capacity);
+			mask = capacity - 1;
+		}
+
+		public void record(double value) {
+			final long index = written.getAndIncrement();
+			// Zero is the empty slot, thus the index is stored plus one
+			slots.set((int)(index & mask), (index + 1) << 32 | Float.floatToRawIntBits((float)value) & 0xFFFFFFFFL);
+		}
+
+		public long getDropped() {
+			return dropped;
+		}
+
+		private Window drain() {
+			final long end = written.get();
+			if (end == read) {
+				return null;
+			}
+			final long start = Math.max(read, end - slots.length());
+			dropped += start - read;
+			read = end;
+			double sum = 0;
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			long count = 0;
+			for (long i = start; i < end; i++) {
+				final long slot = slots.get((int)(i & mask));
+				if ((int)(slot >>> 32) != (int)(i + 1)) {
+					// Not published yet or already overwritten
+					dropped++;
+					continue;
+				}
+				final float value = Float.intBitsToFloat((int)slot);
+				sum += value;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+				count++;
+			}
+			if (count == 0) {
+				return null;
+			}
+			return new Window(name, count, sum / count * scale, min * scale, max * scale);
+		}
+	}
+
+	/**
+	 The aggregate of one series over one period.
+	 */
+	public static final class Window {
+		private final long count;
+		private final double max;
+		private final double mean;
+		private final double min;
+		private final String name;
+
+		private Window(String name, long count, double mean, double min, double max) {
+			this.name = name;
+			this.count = count;
+			this.mean = mean;
+			this.min = min;
+			this.max = max;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getMin() {
+			return min;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + mean + " [" + min + ", " + max + "] n=" + count;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+package com.itth.moonlander.metrics;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ The outcome of every played episode in primitive columns, cheap enough to keep millions of rows.
+
+ <p>Queries run over a window of the latest rows. Once {@code maxRows} are held the older half is appended to the
+ spill file as one block and dropped. The first spill of an instance replaces the file, e.g. of a previous run. A
+ block is a magic number and the row count followed by the columns length, reward, outcome, final velocity, fuel
+ used and wall nanos, each big endian in its primitive type. {@link #read(Path)} loads a file again.
+ */
+public class EpisodeStats {
+	public static final byte NONE = 0;
+	public static final byte SUCCESS = 1;
+	public static final byte FAILURE = 2;
+	/**
+	 The bytes of one row in memory and in the spill file.
+	 */
+	public static final int ROW_BYTES = 4 + 4 + 1 + 4 + 4 + 8;
+	private static final int MAGIC = 0x45505331;
+	private final int maxRows;
+	private final Path spillFile;
+	private float[] finalVelocity;
+	private float[] fuelUsed;
+	private int[] length;
+	private byte[] outcome;
+	private float[] reward;
+	private int rows;
+	private long spilledRows;
+	private long[] wallNanos;
+
+	/**
+	 Constructs an {@link EpisodeStats} which keeps everything in memory.
+	 */
+	public EpisodeStats() {
+		this(Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 Constructs an {@link EpisodeStats}.
+
+	 @param maxRows   the rows to hold in memory before the older half is spilled
+	 @param spillFile the file to append spilled rows to, truncated by the first spill, null to drop them
+	 */
+	public EpisodeStats(int maxRows, Path spillFile) {
+		this.maxRows = Math.max(2, maxRows);
+		this.spillFile = spillFile;
+		allocate(Math.min(this.maxRows, 1024));
+	}
+
+	/**
+	 Reads all blocks of a spill file.
+	 */
+	public static EpisodeStats read(Path file) throws IOException {
+		final EpisodeStats stats = new EpisodeStats();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			while (in.available() > 0) {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("not an episode stats file: " + file);
+				}
+				final int count = in.readInt();
+				final EpisodeStats block = new EpisodeStats();
+				block.allocate(count);
+				for (int i = 0; i < count; i++) block.length[i] = in.readInt();
+				for (int i = 0; i < count; i++) block.reward[i] = in.readFloat();
+				for (int i = 0; i < count; i++) block.outcome[i] = in.readByte();
+				for (int i = 0; i < count; i++) block.finalVelocity[i] = in.readFloat();
+				for (int i = 0; i < count; i++) block.fuelUsed[i] = in.readFloat();
+				for (int i = 0; i < count; i++) block.wallNanos[i] = in.readLong();
+				block.rows = count;
+				stats.appendAll(block, 0, count);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 Appends one episode.
+
+	 @param outcome one of {@link #NONE}, {@link #SUCCESS}, e.g. landed, or {@link #FAILURE}, e.g. crashed
+	 */
+	public synchronized void append(int length, float reward, byte outcome, float finalVelocity, float fuelUsed, long wallNanos) {
+		if (rows == maxRows) {
+			spill(rows / 2);
+		}
+		if (rows == this.length.length) {
+			grow(Math.min(maxRows, rows * 2));
+		}
+		this.length[rows] = length;
+		this.reward[rows] = reward;
+		this.outcome[rows] = outcome;
+		this.finalVelocity[rows] = finalVelocity;
+		this.fuelUsed[rows] = fuelUsed;
+		this.wallNanos[rows] = wallNanos;
+		rows++;
+	}
+
+	/**
+	 Returns the number of rows in memory.
+	 */
+	public synchronized int size() {
+		return rows;
+	}
+
+	/**
+	 Returns the number of rows ever appended, including spilled ones.
+	 */
+	public synchronized long getTotal() {
+		return spilledRows + rows;
+	}
+
+	/**
+	 Returns the percentile of a column over the latest rows.
+
+	 @param percentile between 0 and 100
+	 @param window     the number of latest rows to look at
+	 */
+	public synchronized double percentile(Column column, double percentile, int window) {
+		final double[] values = window(column, window);
+		if (values.length == 0) {
+			return Double.NaN;
+		}
+		Arrays.sort(values);
+		final int index = (int)Math.ceil(percentile / 100 * values.length) - 1;
+		return values[Math.max(0, Math.min(values.length - 1, index))];
+	}
+
+	public synchronized double mean(Column column, int window) {
+		return Arrays.stream(window(column, window)).average().orElse(Double.NaN);
+	}
+
+	/**
+	 Counts the latest rows per bin of equal width, values outside of the bounds go into the outer bins.
+	 */
+	public synchronized int[] histogram(Column column, double min, double max, int bins, int window) {
+		final int[] counts = new int[bins];
+		for (double value : window(column, window)) {
+			final int bin = (int)((value - min) / (max - min) * bins);
+			counts[Math.max(0, Math.min(bins - 1, bin))]++;
+		}
+		return counts;
+	}
+
+	/**
+	 Returns the fraction of the latest rows with the given outcome.
+	 */
+	public synchronized double rate(byte outcome, int window) {
+		final int start = Math.max(0, rows - window);
+		if (start == rows) {
+			return Double.NaN;
+		}
+		int count = 0;
+		for (int i = start; i < rows; i++) {
+			if (this.outcome[i] == outcome) {
+				count++;
+			}
+		}
+		return (double)count / (rows - start);
+	}
+
+	/**
+	 Spills all rows in memory.
+	 */
+	public synchronized void flush() {
+		spill(rows);
+	}
+
+	/**
+	 Returns a summary of the latest rows for logging.
+	 */
+	public synchronized String summary(int window) {
+		return String.format("episodes %d, length p50 %.0f p90 %.0f, reward p10 %.1f p50 %.1f p90 %.1f, success %.2f, failure %.2f",
+				getTotal(),
+				percentile(Column.LENGTH, 50, window), percentile(Column.LENGTH, 90, window),
+				percentile(Column.REWARD, 10, window), percentile(Column.REWARD, 50, window), percentile(Column.REWARD, 90, window),
+				rate(SUCCESS, window), rate(FAILURE, window));
+	}
+
+	private double[] window(Column column, int window) {
+		final int start = Math.max(0, rows - window);
+		final double[] values = new double[rows - start];
+		for (int i = start; i < rows; i++) {
+			values[i - start] = column.get(this, i);
+		}
+		return values;
+	}
+
+	private void allocate(int capacity) {
+		length = new int[capacity];
+		reward = new float[capacity];
+		outcome = new byte[capacity];
+		finalVelocity = new float[capacity];
+		fuelUsed = new float[capacity];
+		wallNanos = new long[capacity];
+	}
+
+	private void grow(int capacity) {
+		length = Arrays.copyOf(length, capacity);
+		reward = Arrays.copyOf(reward, capacity);
+		outcome = Arrays.copyOf(outcome, capacity);
+		finalVelocity = Arrays.copyOf(finalVelocity, capacity);
+		fuelUsed = Arrays.copyOf(fuelUsed, capacity);
+		wallNanos = Arrays.copyOf(wallNanos, capacity);
+	}
+
+	private void appendAll(EpisodeStats source, int from, int to) {
+		for (int i = from; i < to; i++) {
+			append(source.length[i], source.reward[i], source.outcome[i], source.finalVelocity[i], source.fuelUsed[i], source.wallNanos[i]);
+		}
+	}
+
+	private void spill(int count) {
+		if (count == 0) {
+			return;
+		}
+		if (spillFile != null) {
+			// Every spill writes the file, thus none was spilled yet before the first one of this instance
+			final StandardOpenOption mode = spilledRows == 0 ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND;
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(count);
+				for (int i = 0; i < count; i++) out.writeInt(length[i]);
+				for (int i = 0; i < count; i++) out.writeFloat(reward[i]);
+				for (int i = 0; i < count; i++) out.writeByte(outcome[i]);
+				for (int i = 0; i < count; i++) out.writeFloat(finalVelocity[i]);
+				for (int i = 0; i < count; i++) out.writeFloat(fuelUsed[i]);
+				for (int i = 0; i < count; i++) out.writeLong(wallNanos[i]);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		final int remaining = rows - count;
+		System.arraycopy(length, count, length, 0, remaining);
+		System.arraycopy(reward, count, reward, 0, remaining);
+		System.arraycopy(outcome, count, outcome, 0, remaining);
+		System.arraycopy(finalVelocity, count, finalVelocity, 0, remaining);
+		System.arraycopy(fuelUsed, count, fuelUsed, 0, remaining);
+		System.arraycopy(wallNanos, count, wallNanos, 0, remaining);
+		rows = remaining;
+		spilledRows += count;
+	}
+
+	/**
+	 The numeric columns.
+	 */
+	public enum Column {
+		LENGTH {
+			double get(EpisodeStats stats, int row) {
+				return stats.length[row];
+			}
+		},
+		REWARD {
+			double get(EpisodeStats stats, int row) {
+				return stats.reward[row];
+			}
+		},
+		FINAL_VELOCITY {
+			double get(EpisodeStats stats, int row) {
+				return stats.finalVelocity[row];
+			}
+		},
+		FUEL_USED {
+			double get(EpisodeStats stats, int row) {
+				return stats.fuelUsed[row];
+			}
+		},
+		WALL_MILLIS {
+			double get(EpisodeStats stats, int row) {
+				return stats.wallNanos[row] / 1e6;
+			}
+		};
+
+		abstract double get(EpisodeStats stats, int row);
+	}
+}
@@ -0,0 +1,202 @@
+package com.itth.moonlander.metrics;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import ai.djl.ndarray.*;
+import org.apache.logging.log4j.*;
+
+/**
+ Counts the live NDArrays and their bytes of a set of manager hierarchies, a cheap replacement for
+ {@link BaseNDManager#debugDump(int)} which can run for days.
+
+ <p>Every registered manager is sampled recursively at a fixed rate on a daemon thread, the numbers are published as
+ gauges {@code ndarray.<name>.live} and {@code ndarray.<name>.bytes} plus the totals. Sub managers passed through
+ {@link #track(NDManager)} are sampled with their allocation site, the sites of those still open after a while are
+ logged, which points at the code that forgets to close them.
+ */
+public class NDMemoryTracker implements AutoCloseable {
+	protected final static Logger logger = LogManager.getLogger(NDMemoryTracker.class);
+	private static final long LEAK_AGE_NANOS = TimeUnit.MINUTES.toNanos(1);
+	private final Map<String, BaseNDManager> managers = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor;
+	private final int sampleInterval;
+	private final Queue<Site> sites = new ConcurrentLinkedQueue<>();
+	private final AtomicLong tracked = new AtomicLong();
+	private final Map<String, Usage> usages = new ConcurrentHashMap<>();
+	private volatile Usage total = new Usage(0, 0);
+
+	/**
+	 Constructs a {@link NDMemoryTracker}.
+
+	 @param periodSeconds  the interval between two samples of all managers
+	 @param sampleInterval every how many tracked sub managers the allocation site is recorded, 0 for none
+	 */
+	public NDMemoryTracker(long periodSeconds, int sampleInterval) {
+		this.sampleInterval = sampleInterval;
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "nd-memory");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleAtFixedRate(this::sample, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+		TrainingMetrics.gauge(TrainingMetrics.NDARRAYS_LIVE, () -> total.arrays);
+		TrainingMetrics.gauge(TrainingMetrics.NDARRAYS_BYTES, () -> total.bytes);
+	}
+
+	/**
+	 Samples the manager and all its sub managers under the given name, e.g. per environment.
+	 */
+	public void register(String name, BaseNDManager manager) {
+		managers.put(name, manager);
+		usages.put(name, new Usage(0, 0));
+		TrainingMetrics.gauge(TrainingMetrics.NDARRAYS_LIVE + "." + name, () -> usages.get(name).arrays);
+		TrainingMetrics.gauge(TrainingMetrics.NDARRAYS_BYTES + "." + name, () -> usages.get(name).bytes);
+	}
+
+	/**
+	 Records the allocation site of every {@code sampleInterval}-th manager, for short-lived sub managers.
+
+	 @return the manager
+	 */
+	public <M extends NDManager> M track(M manager) {
+		if (sampleInterval > 0 && tracked.getAndIncrement() % sampleInterval == 0) {
+			sites.add(new Site(manager, Thread.currentThread().getStackTrace()));
+		}
+		return manager;
+	}
+
+	/**
+	 Returns the numbers of the last sample, by registered name.
+	 */
+	public Map<String, Usage> getUsages() {
+		return Collections.unmodifiableMap(usages);
+	}
+
+	public Usage getTotal() {
+		return total;
+	}
+
+	/**
+	 Returns the count of sampled managers still open after a minute by allocation site, the most frequent first.
+	 */
+	public List<Map.Entry<String, Integer>> getLeakSites() {
+		final long now = System.nanoTime();
+		final Map<String, Integer> counts = new HashMap<>();
+		sites.removeIf(site -> {
+			final NDManager manager = site.manager.get();
+			if (manager == null || !manager.isOpen()) {
+				return true;
+			}
+			if (now - site.nanos > LEAK_AGE_NANOS) {
+				counts.merge(site.location(), 1, Integer::sum);
+			}
+			return false;
+		});
+		final List<Map.Entry<String, Integer>> result = new ArrayList<>(counts.entrySet());
+		result.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+		return result;
+	}
+
+	/**
+	 Samples all registered managers now, not only periodically.
+
+	 @return the numbers by registered name
+	 */
+	public synchronized Map<String, Usage> measure() {
+		long arrays = 0;
+		long bytes = 0;
+		for (Map.Entry<String, BaseNDManager> entry : managers.entrySet()) {
+			final Usage usage = Usage.of(entry.getValue());
+			usages.put(entry.getKey(), usage);
+			arrays += usage.arrays;
+			bytes += usage.bytes;
+		}
+		total = new Usage(arrays, bytes);
+		return getUsages();
+	}
+
+	private void sample() {
+		try {
+			measure();
+			final List<Map.Entry<String, Integer>> leaks = getLeakSites();
+			if (!leaks.isEmpty()) {
+				logger.info("NDArrays: " + total + ", open sub managers by site: " + leaks.subList(0, Math.min(5, leaks.size())));
+			}
+		} catch (Exception e) {
+			logger.error(e, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 The live arrays and their bytes of one manager hierarchy.
+	 */
+	public static final class Usage {
+		private final long arrays;
+		private final long bytes;
+
+		private Usage(long arrays, long bytes) {
+			this.arrays = arrays;
+			this.bytes = bytes;
+		}
+
+		static Usage of(BaseNDManager manager) {
+			if (!manager.isOpen()) {
+				return new Usage(0, 0);
+			}
+			long bytes = 0;
+			final NDList arrays = manager.getManagedArrays();
+			for (NDArray array : arrays) {
+				try {
+					bytes += array.size() * array.getDataType().getNumOfBytes();
+				} catch (RuntimeException e) {
+					// closed by its owner meanwhile
+				}
+			}
+			return new Usage(arrays.size(), bytes);
+		}
+
+		public long getArrays() {
+			return arrays;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return arrays + " arrays, " + bytes / 1024 + " KiB";
+		}
+	}
+
+	private static final class Site {
+		private final WeakReference<NDManager> manager;
+		private final long nanos = System.nanoTime();
+		private final StackTraceElement[] stack;
+
+		private Site(NDManager manager, StackTraceElement[] stack) {
+			this.manager = new WeakReference<>(manager);
+			this.stack = stack;
+		}
+
+		/**
+		 The first frame outside of this tracker and the JDK.
+		 */
+		private String location() {
+			for (StackTraceElement element : stack) {
+				final String className = element.getClassName();
+				if (!className.startsWith("java.") && !className.equals(NDMemoryTracker.class.getName())) {
+					return element.toString();
+				}
+			}
+			return "unknown";
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.itth.moonlander.metrics;
+
+import jdk.jfr.*;
+
+/**
+ Flight recorder events of the training loop phases.
+
+ <p>The events are disabled unless a recording enables them, then they cost a few nanoseconds each. Start a
+ recording with {@code -XX:StartFlightRecording} and open it in JDK Mission Control to line up GC, JIT and native
+ engine stalls with the phases below.
+ */
+public final class TrainingEvents {
+	private static final String CATEGORY = "MoonLander";
+
+	private TrainingEvents() {}
+
+	@Name("com.itth.moonlander.EnvStep")
+	@Label("Environment Step")
+	@Category({CATEGORY, "Environment"})
+	@StackTrace(false)
+	public static class EnvStep extends Event {
+		@Label("Environment")
+		public String environment;
+		@Label("Episode")
+		public int episode;
+		@Label("Step")
+		public int step;
+		@Label("Action")
+		public int action;
+	}
+
+	@Name("com.itth.moonlander.ActionSelection")
+	@Label("Action Selection")
+	@Category({CATEGORY, "Agent"})
+	@StackTrace(false)
+	public static class ActionSelection extends Event {
+		@Label("Action")
+		public int action;
+		@Label("Explored")
+		public boolean explored;
+		@Label("Training")
+		public boolean training;
+	}
+
+	@Name("com.itth.moonlander.BatchSample")
+	@Label("Replay Batch Sample")
+	@Category({CATEGORY, "Replay"})
+	@StackTrace(false)
+	public static class BatchSample extends Event {
+		@Label("Batch Size")
+		public int batchSize;
+	}
+
+	@Name("com.itth.moonlander.Forward")
+	@Label("Forward Pass")
+	@Category({CATEGORY, "Trainer"})
+	@StackTrace(false)
+	public static class Forward extends Event {
+		@Label("Batch Size")
+		public int batchSize;
+	}
+
+	@Name("com.itth.moonlander.Backward")
+	@Label("Backward Pass")
+	@Category({CATEGORY, "Trainer"})
+	@StackTrace(false)
+	public static class Backward extends Event {
+		@Label("Batch Size")
+		public int batchSize;
+	}
+
+	/**
+	 Forward and backward pass of an agent which does not report them separately.
+	 */
+	@Name("com.itth.moonlander.TrainBatch")
+	@Label("Train Batch")
+	@Category({CATEGORY, "Trainer"})
+	@StackTrace(false)
+	public static class TrainBatch extends Event {
+		@Label("Batch Size")
+		public int batchSize;
+	}
+
+	@Name("com.itth.moonlander.OptimizerStep")
+	@Label("Optimizer Step")
+	@Category({CATEGORY, "Trainer"})
+	@StackTrace(false)
+	public static class OptimizerStep extends Event {
+		@Label("Update")
+		public long update;
+	}
+
+	@Name("com.itth.moonlander.Save")
+	@Label("Checkpoint Save")
+	@Category({CATEGORY, "Trainer"})
+	public static class Save extends Event {
+		@Label("Model")
+		public String model;
+	}
+
+	@Name("com.itth.moonlander.UiDispatch")
+	@Label("UI Dispatch")
+	@Category({CATEGORY, "UI"})
+	@StackTrace(false)
+	public static class UiDispatch extends Event {
+		@Label("Operation")
+		public String operation;
+	}
+}
@@ -0,0 +1,85 @@
+package com.itth.moonlander.metrics;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import com.codahale.metrics.*;
+import com.codahale.metrics.jmx.JmxReporter;
+import org.apache.logging.log4j.*;
+
+/**
+ The shared metric registry of the training loops.
+
+ <p>Timers measure the latency percentiles and rates of the phases of a run, meters count games and gauges expose
+ fill levels. {@link #startReporters(Path, long)} publishes all of them via JMX and into one CSV file per metric.
+ */
+public final class TrainingMetrics {
+	public static final String REGISTRY = "moonlander";
+	public static final String ENV_STEP = "env.step";
+	public static final String ENV_GAMES = "env.games";
+	public static final String CHOOSE_ACTION = "agent.chooseAction";
+	public static final String EPSILON = "agent.epsilon";
+	public static final String REPLAY_SAMPLE = "replay.sample";
+	public static final String REPLAY_FILL = "replay.fill";
+	public static final String TRAIN_BATCH = "trainer.trainBatch";
+	public static final String TRAINER_STEP = "trainer.step";
+	public static final String CHECKPOINT_SAVE = "checkpoint.save";
+	public static final String NDARRAYS_LIVE = "ndarray.live";
+	public static final String NDARRAYS_BYTES = "ndarray.bytes";
+	protected final static Logger logger = LogManager.getLogger(TrainingMetrics.class);
+
+	private static boolean started;
+
+	private TrainingMetrics() {}
+
+	public static MetricRegistry registry() {
+		return SharedMetricRegistries.getOrCreate(REGISTRY);
+	}
+
+	public static Timer timer(String name) {
+		return registry().timer(name);
+	}
+
+	public static Meter meter(String name) {
+		return registry().meter(name);
+	}
+
+	/**
+	 Registers a gauge, replacing a former one of the same name, e.g. of the previous run.
+	 */
+	public static <T> void gauge(String name, Gauge<T> gauge) {
+		final MetricRegistry registry = registry();
+		registry.remove(name);
+		registry.register(name, gauge);
+	}
+
+	/**
+	 Starts the JMX reporter and a CSV reporter writing every {@code periodSeconds}, only once per JVM.
+
+	 @param directory the directory for the CSV files
+	 */
+	public static synchronized void startReporters(Path directory, long periodSeconds) {
+		if (started) {
+			return;
+		}
+		final File csvDirectory = directory.toFile();
+		if (!csvDirectory.isDirectory() && !csvDirectory.mkdirs()) {
+			logger.warn("cannot create metrics directory " + csvDirectory);
+			return;
+		}
+		JmxReporter.forRegistry(registry())
+				.inDomain("com.itth.moonlander")
+				.convertRatesTo(TimeUnit.SECONDS)
+				.convertDurationsTo(TimeUnit.MILLISECONDS)
+				.build()
+				.start();
+		CsvReporter.forRegistry(registry())
+				.formatFor(Locale.US)
+				.convertRatesTo(TimeUnit.SECONDS)
+				.convertDurationsTo(TimeUnit.MILLISECONDS)
+				.build(csvDirectory)
+				.start(periodSeconds, TimeUnit.SECONDS);
+		started = true;
+	}
+}
@@ -28,6 +28,8 @@ import ai.djl.training.optimizer.Adam;
 import ai.djl.training.tracker.*;
 import org.slf4j.*;
 
+import com.itth.moonlander.metrics.NDMemoryTracker;
+
 /**
  An example of training reinforcement learning using {@link TicTacToe} and a {@link QAgent}.
 
@@ -60,7 +62,9 @@ public final class TrainTicTacToe {
 
 		Block block = getBlock();
 
-		try (Model model = Model.newInstance("tic-tac-toe")) {
+		try (NDMemoryTracker memoryTracker = new NDMemoryTracker(10, 0);
+				Model model = Model.newInstance("tic-tac-toe")) {
+			memoryTracker.register("tic-tac-toe", manager);
 			model.setBlock(block);
 
 			DefaultTrainingConfig config = setupTrainingConfig();
@@ -94,11 +98,12 @@ public final class TrainTicTacToe {
 						if (result > 0) {
 							trainingWins++;
 						}
-						manager.debugDump(9);
 					}
 
 					trainWinRate = (float)trainingWins / gamesPerEpoch;
-					logger.info("Training wins: {}", trainWinRate);
+					// Samples now, the periodic sample may be up to ten seconds old
+					memoryTracker.measure();
+					logger.info("Training wins: {}, NDArrays: {}", trainWinRate, memoryTracker.getTotal());
 
 					trainer.notifyListeners(listener -> listener.onEpoch(trainer));
 
@@ -0,0 +1,208 @@
+package com.itth.moonlander.training;
+
+import java.util.Arrays;
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.modality.rl.env.RlEnv;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+
+/**
+ An environment which repeats every chosen action for up to {@code repeat} steps of another one, so the agent
+ decides and the replay stores once per repeat instead of once per step.
+
+ <p>The rewards of the repeated steps are summed and repeating stops early once the game is done. With a fixed
+ repeat every action runs {@code repeat} steps. An adaptive repeat stops as well once the first observation array
+ changed, e.g. the side of the ball in Breakout, so the agent decides again exactly when there is something new to
+ decide on and holds the action while nothing changes.
+
+ <p>The observations of a step are copied into the step's own manager, as the wrapped environment may free them
+ with its next step. The wrapped environment plays without training, so it does not keep a second replay of the
+ same steps. A step returned while training shares its arrays with the one kept by the replay buffer, closing it
+ does nothing, the buffer frees them on eviction.
+ */
+public class ActionRepeatEnv implements OutcomeEnv {
+	private final boolean adaptive;
+	private final RlEnv env;
+	private final NDManager manager;
+	private final ResizableReplayBuffer replayBuffer;
+	private final int repeat;
+	private long decisions;
+	private long steps;
+
+	/**
+	 Constructs an {@link ActionRepeatEnv}.
+
+	 @param env       the environment to repeat the actions in
+	 @param manager   the manager to create the steps under
+	 @param repeat    the maximum steps per action
+	 @param adaptive  whether to stop repeating once the first observation array changed
+	 @param batchSize the number of steps to sample per batch
+	 @param capacity  the number of repeated steps to keep
+	 */
+	public ActionRepeatEnv(RlEnv env, NDManager manager, int repeat, boolean adaptive, int batchSize, int capacity) {
+		if (repeat <= 0) {
+			throw new IllegalArgumentException("repeat must be positive");
+		}
+		this.env = env;
+		this.manager = manager;
+		this.repeat = repeat;
+		this.adaptive = adaptive;
+		replayBuffer = new ResizableReplayBuffer(batchSize, capacity);
+	}
+
+	@Override
+	public void reset() {
+		env.reset();
+	}
+
+	@Override
+	public NDList getObservation() {
+		return env.getObservation();
+	}
+
+	@Override
+	public ActionSpace getActionSpace() {
+		return env.getActionSpace();
+	}
+
+	/**
+	 Returns the outcome of the wrapped environment, which has to be an {@link OutcomeEnv}.
+	 */
+	@Override
+	public boolean isWon() {
+		return OutcomeEnv.isWon(env);
+	}
+
+	/**
+	 Steps the wrapped environment with the action until it repeated, the game is done or, if adaptive, the
+	 observation changed.
+	 */
+	@Override
+	public Step step(NDList action, boolean training) {
+		final NDManager stepManager = manager.newSubManager();
+		final NDList preObservation = copy(env.getObservation(), stepManager);
+		final float[] preFeatures = adaptive ? env.getObservation().get(0).toFloatArray() : null;
+		float reward = 0;
+		boolean done = false;
+		for (int i = 0; i < repeat && !done; i++) {
+			try (Step step = env.step(action, false)) {
+				reward += step.getReward().getFloat();
+				done = step.isDone();
+			}
+			steps++;
+			if (adaptive && !Arrays.equals(preFeatures, env.getObservation().get(0).toFloatArray())) {
+				break;
+			}
+		}
+		decisions++;
+		final RepeatStep step = new RepeatStep(stepManager, preObservation, action, copy(env.getObservation(), stepManager),
+				stepManager.create(reward), done, true);
+		if (!training) {
+			return step;
+		}
+		synchronized (replayBuffer) {
+			replayBuffer.addStep(step);
+		}
+		// The caller may close its step, only the replay buffer frees the arrays
+		return new RepeatStep(stepManager, step.preObservation, action, step.postObservation, step.reward, done, false);
+	}
+
+	/**
+	 Samples a batch of repeated steps, safe to call while another thread plays.
+	 */
+	@Override
+	public Step[] getBatch() {
+		synchronized (replayBuffer) {
+			return replayBuffer.getBatch();
+		}
+	}
+
+	public ResizableReplayBuffer getReplayBuffer() {
+		return replayBuffer;
+	}
+
+	/**
+	 Returns the mean steps of the wrapped environment per decision so far.
+	 */
+	public float getMeanRepeat() {
+		return decisions == 0 ? 0 : (float)steps / decisions;
+	}
+
+	/**
+	 Keeps the wrapped environment open, the steps are freed with the manager.
+	 */
+	@Override
+	public void close() {
+	}
+
+	private static NDList copy(NDList arrays, NDManager manager) {
+		final NDList copy = new NDList(arrays.size());
+		for (NDArray array : arrays) {
+			final NDArray duplicate = array.duplicate();
+			duplicate.attach(manager);
+			copy.add(duplicate);
+		}
+		return copy;
+	}
+
+	/**
+	 The repeated steps as one, closing frees the arrays only if the step owns its manager.
+	 */
+	private final class RepeatStep implements Step {
+		private final NDList action;
+		private final boolean done;
+		private final NDManager manager;
+		private final boolean ownsManager;
+		private final NDList postObservation;
+		private final NDList preObservation;
+		private final NDArray reward;
+
+		private RepeatStep(NDManager manager, NDList preObservation, NDList action, NDList postObservation, NDArray reward, boolean done, boolean ownsManager) {
+			this.manager = manager;
+			this.preObservation = preObservation;
+			this.action = action;
+			this.postObservation = postObservation;
+			this.reward = reward;
+			this.done = done;
+			this.ownsManager = ownsManager;
+		}
+
+		@Override
+		public NDList getPreObservation() {
+			return preObservation;
+		}
+
+		@Override
+		public NDList getAction() {
+			return action;
+		}
+
+		@Override
+		public NDList getPostObservation() {
+			return postObservation;
+		}
+
+		@Override
+		public ActionSpace getPostActionSpace() {
+			return env.getActionSpace();
+		}
+
+		@Override
+		public NDArray getReward() {
+			return reward;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public void close() {
+			if (ownsManager) {
+				manager.close();
+			}
+		}
+	}
+}
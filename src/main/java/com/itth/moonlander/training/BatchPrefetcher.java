@@ -0,0 +1,103 @@
+package com.itth.moonlander.training;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.ndarray.NDManager;
+import org.apache.logging.log4j.*;
+
+/**
+ Samples and stacks the next replay batches on a background thread while the current one is trained.
+
+ <p>Batches are handed over through a small bounded queue, so the prefetcher never runs more than
+ {@code capacity} batches ahead of the learner. The thread is started by the first {@link #take()}, thus the
+ replay buffer has to contain steps by then.
+ */
+public class BatchPrefetcher implements AutoCloseable {
+	protected final static Logger logger = LogManager.getLogger(BatchPrefetcher.class);
+
+	private final NDManager manager;
+	private final BlockingQueue<Object> queue;
+	private final Supplier<Step[]> source;
+	private Thread thread;
+
+	/**
+	 Constructs a {@link BatchPrefetcher}.
+
+	 @param source   the replay batches, must be safe to call concurrently with the environment
+	 @param manager  the manager to create the batch managers under
+	 @param capacity the number of batches to prepare ahead
+	 */
+	public BatchPrefetcher(Supplier<Step[]> source, NDManager manager, int capacity) {
+		this.source = source;
+		this.manager = manager;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 Returns the next prepared batch, waiting if it is not stacked yet. The caller has to close it.
+	 */
+	public PreparedBatch take() {
+		if (thread == null) {
+			thread = new Thread(this::prefetch, "prefetch");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		final Object next;
+		try {
+			next = queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for a batch", e);
+		}
+		if (next instanceof RuntimeException) {
+			throw new IllegalStateException("prefetching failed", (RuntimeException)next);
+		}
+		return (PreparedBatch)next;
+	}
+
+	private void prefetch() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final PreparedBatch batch = PreparedBatch.of(source.get(), manager.newSubManager());
+				try {
+					queue.put(batch);
+				} catch (InterruptedException e) {
+					batch.close();
+					throw e;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.error(e, e);
+			try {
+				queue.put(e);
+			} catch (InterruptedException interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		final List<Object> remaining = new ArrayList<>();
+		queue.drainTo(remaining);
+		for (Object batch : remaining) {
+			if (batch instanceof PreparedBatch) {
+				((PreparedBatch)batch).close();
+			}
+		}
+	}
+}
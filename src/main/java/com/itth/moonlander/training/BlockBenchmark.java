@@ -0,0 +1,421 @@
+package com.itth.moonlander.training;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import ai.djl.Model;
+import ai.djl.modality.rl.agent.RlAgent;
+import ai.djl.modality.rl.env.RlEnv;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import ai.djl.nn.Parameter;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.Trainer;
+import ai.djl.training.TrainingConfig;
+import ai.djl.training.listener.TrainingListener;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Adam;
+import ai.djl.training.tracker.PolynomialDecayTracker;
+import ai.djl.training.tracker.Tracker;
+import ai.djl.util.Pair;
+import org.apache.logging.log4j.*;
+
+import com.itth.breakout.BreakoutEngine;
+import com.itth.breakout.BreakoutEnv;
+import com.itth.breakout.BreakoutTrainer;
+import com.itth.moonlander.EpsilonGreedy;
+import com.itth.moonlander.MoonLanderEnv;
+import com.itth.moonlander.MoonLanderSimulation;
+import com.itth.moonlander.MoonLanderTrainer;
+
+/**
+ Trains every block of a set under the same budget of games and compares their cost with the win rate reached.
+
+ <p>Each block gets a fresh environment, model and trainer, plays {@code trainingGames} epsilon greedy games with
+ updates scheduled like the trainers do and is then validated greedily by a {@link ValidationRunner}. Reported are
+ the parameter bytes, the mean latency of a greedy action choice during training, which scores all actions in one
+ forward pass, the mean latency of an update including the optimizer step, the environment steps per second of the
+ training phase including its updates and the validation win rate with its Wilson score interval, a game counting as
+ won by the rules of its {@link OutcomeEnv}. Batches are stacked on the caller's thread outside of the update timing.
+ */
+public class BlockBenchmark {
+	protected final static Logger logger = LogManager.getLogger(BlockBenchmark.class);
+	/** The fixed learning rate of {@link #main(String[])}, a schedule over the trainers' games would not fit the budget. */
+	public static final float LEARNING_RATE = 0.001F;
+	private final int batchSize;
+	private final Map<String, Supplier<Block>> blocks;
+	private final Supplier<TrainingConfig> config;
+	private final EnvFactory environment;
+	private final Tracker exploreRate;
+	private final Shape[] inputShapes;
+	private final int replaySize;
+	private final float rewardDiscount;
+	private final int stepsPerUpdate;
+	private final int trainingGames;
+	private final int validationGames;
+
+	private BlockBenchmark(Builder builder) {
+		blocks = builder.blocks;
+		environment = builder.environment;
+		config = builder.config;
+		inputShapes = builder.inputShapes;
+		batchSize = builder.batchSize;
+		replaySize = builder.replaySize;
+		rewardDiscount = builder.rewardDiscount;
+		stepsPerUpdate = builder.stepsPerUpdate;
+		trainingGames = builder.trainingGames;
+		validationGames = builder.validationGames;
+		exploreRate = builder.exploreRate;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 Compares the blocks of {@link BreakoutTrainer} and the one of {@link MoonLanderTrainer}, each game on its own.
+	 */
+	public static void main(String[] args) {
+		final int trainingGames = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		final int batchSize = 256;
+		final List<Result> breakout = builder()
+				.addBlock("Breakout", BreakoutTrainer::createBlock)
+				.addBlock("BreakoutLegacy", BreakoutTrainer::createBlockLegacy)
+				.addBlock("BreakoutMlp", BreakoutTrainer::createBlockMlp)
+				.setEnvironment((manager, batch, replay) -> new BreakoutEnv(new BreakoutEngine(), manager, batch, replay))
+				.setConfig(() -> createConfig(LEARNING_RATE))
+				.setInputShapes(new Shape(batchSize, 1), new Shape(batchSize), new Shape(batchSize))
+				.optBatchSize(batchSize)
+				.optTrainingGames(trainingGames)
+				.build()
+				.run();
+		final List<Result> moonLander = builder()
+				.addBlock("MoonLander", MoonLanderTrainer::createBlock)
+				.setEnvironment((manager, batch, replay) -> new MoonLanderEnv(new MoonLanderSimulation(), manager, batch, replay))
+				.setConfig(() -> createConfig(LEARNING_RATE))
+				.setInputShapes(new Shape(batchSize, 5), new Shape(batchSize), new Shape(batchSize))
+				.optBatchSize(batchSize)
+				.optTrainingGames(trainingGames)
+				.build()
+				.run();
+		logger.info(Result.HEADER);
+		for (Result result : breakout) {
+			logger.info(result);
+		}
+		for (Result result : moonLander) {
+			logger.info(result);
+		}
+	}
+
+	/**
+	 Returns the training configuration of the trainers, L2 loss and Adam, at a fixed learning rate, so the blocks
+	 are compared on the same rate throughout the budget.
+	 */
+	public static TrainingConfig createConfig(float learningRate) {
+		return new DefaultTrainingConfig(Loss.l2Loss())
+				.addTrainingListeners(TrainingListener.Defaults.basic())
+				.optOptimizer(Adam.builder().optLearningRateTracker(Tracker.fixed(learningRate)).build());
+	}
+
+	/**
+	 Trains and validates every block in the order added.
+	 */
+	public List<Result> run() {
+		final List<Result> results = new ArrayList<>();
+		for (Map.Entry<String, Supplier<Block>> entry : blocks.entrySet()) {
+			final Result result = run(entry.getKey(), entry.getValue());
+			logger.info(result);
+			results.add(result);
+		}
+		return results;
+	}
+
+	private Result run(String name, Supplier<Block> factory) {
+		// The environments close the manager they are given
+		final BaseNDManager manager = (BaseNDManager)NDManager.newBaseManager();
+		try (OutcomeEnv env = environment.create(manager, batchSize, replaySize);
+				Model model = Model.newInstance(name)) {
+			model.setBlock(factory.get());
+			try (Trainer trainer = model.newTrainer(config.get())) {
+				trainer.initialize(inputShapes);
+				final StackedQAgent learner = new StackedQAgent(trainer, rewardDiscount);
+				// Times the greedy choices only, the random ones skip the forward pass
+				final TimedAgent greedy = new TimedAgent(learner);
+				final TimedAgent training = new TimedAgent(new EpsilonGreedy(greedy, exploreRate));
+				final UpdateScheduler scheduler = UpdateScheduler.builder()
+						.setUpdatesPerInterval(1)
+						.setStepsPerInterval(stepsPerUpdate)
+						.optMinUpdates(1)
+						.build();
+				final long[] update = new long[2];
+				final long trainingStart = System.nanoTime();
+				for (int game = 0; game < trainingGames; game++) {
+					final long before = training.choices;
+					env.runEnvironment(training, true);
+					scheduler.update((int)(training.choices - before), () -> {
+						final Step[] batch = env.getBatch();
+						if (batch.length == 0) {
+							return;
+						}
+						try (PreparedBatch prepared = PreparedBatch.of(batch, manager.newSubManager())) {
+							final long start = System.nanoTime();
+							learner.trainBatch(prepared);
+							scheduler.step(trainer);
+							update[0] += System.nanoTime() - start;
+							update[1]++;
+						}
+					});
+				}
+				final long trainingNanos = System.nanoTime() - trainingStart;
+
+				final ValidationRunner.Result validation;
+				try (ValidationRunner validator = ValidationRunner.builder()
+						.setBlockFactory(factory)
+						.setInputShapes(inputShapes)
+						.setEnvironment(validationManager -> environment.create(validationManager, 1, 1))
+						.optGames(validationGames)
+						.build()) {
+					validation = validator.validate(model.getBlock()).join();
+				}
+				return new Result(name, parameterBytes(model.getBlock()),
+						greedy.getMeanNanos(),
+						update[1] == 0 ? 0 : update[0] / update[1],
+						training.choices * 1e9 / trainingNanos,
+						validation);
+			}
+		}
+	}
+
+	private static long parameterBytes(Block block) {
+		long bytes = 0;
+		for (Pair<String, Parameter> parameter : block.getParameters()) {
+			final NDArray array = parameter.getValue().getArray();
+			bytes += array.size() * array.getDataType().getNumOfBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 Creates the environment of a block, which takes ownership of the manager, for training and for every validation
+	 worker.
+	 */
+	public interface EnvFactory {
+		OutcomeEnv create(BaseNDManager manager, int batchSize, int replaySize);
+	}
+
+	/**
+	 Counts and times the action choices of an agent.
+	 */
+	private static final class TimedAgent implements RlAgent {
+		private final RlAgent agent;
+		private long choices;
+		private long nanos;
+
+		private TimedAgent(RlAgent agent) {
+			this.agent = agent;
+		}
+
+		@Override
+		public NDList chooseAction(RlEnv env, boolean training) {
+			final long start = System.nanoTime();
+			final NDList action = agent.chooseAction(env, training);
+			nanos += System.nanoTime() - start;
+			choices++;
+			return action;
+		}
+
+		@Override
+		public void trainBatch(Step[] batchSteps) {
+			agent.trainBatch(batchSteps);
+		}
+
+		private long getMeanNanos() {
+			return choices == 0 ? 0 : nanos / choices;
+		}
+	}
+
+	/**
+	 The cost and quality of one block.
+	 */
+	public static final class Result {
+		public static final String HEADER = String.format("%-16s %12s %12s %12s %12s %8s %15s", "block", "params [B]", "forward [us]", "update [us]", "steps/s", "win rate", "95 % interval");
+		private final long forwardNanos;
+		private final String name;
+		private final long parameterBytes;
+		private final double stepsPerSecond;
+		private final long updateNanos;
+		private final ValidationRunner.Result validation;
+
+		private Result(String name, long parameterBytes, long forwardNanos, long updateNanos, double stepsPerSecond, ValidationRunner.Result validation) {
+			this.name = name;
+			this.parameterBytes = parameterBytes;
+			this.forwardNanos = forwardNanos;
+			this.updateNanos = updateNanos;
+			this.stepsPerSecond = stepsPerSecond;
+			this.validation = validation;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getParameterBytes() {
+			return parameterBytes;
+		}
+
+		/**
+		 Returns the mean nanoseconds of a greedy action choice.
+		 */
+		public long getForwardNanos() {
+			return forwardNanos;
+		}
+
+		/**
+		 Returns the mean nanoseconds of a gradient and optimizer step on a stacked batch.
+		 */
+		public long getUpdateNanos() {
+			return updateNanos;
+		}
+
+		/**
+		 Returns the environment steps per second of the training games including their updates.
+		 */
+		public double getStepsPerSecond() {
+			return stepsPerSecond;
+		}
+
+		public float getWinRate() {
+			return validation.getWinRate();
+		}
+
+		/**
+		 Returns the validation games, won ones and the interval of the win rate.
+		 */
+		public ValidationRunner.Result getValidation() {
+			return validation;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-16s %12d %12.1f %12.1f %12.0f %8.3f  [%.3f, %.3f]", name, parameterBytes, forwardNanos / 1e3, updateNanos / 1e3, stepsPerSecond,
+					validation.getWinRate(), validation.getLower(), validation.getUpper());
+		}
+	}
+
+	public static final class Builder {
+		private final Map<String, Supplier<Block>> blocks = new LinkedHashMap<>();
+		private int batchSize = 64;
+		private Supplier<TrainingConfig> config;
+		private EnvFactory environment;
+		private Tracker exploreRate;
+		private Shape[] inputShapes;
+		private int replaySize = 1 << 16;
+		private float rewardDiscount = 0.9F;
+		private int stepsPerUpdate = 256;
+		private int trainingGames = 64;
+		private int validationGames = 64;
+
+		private Builder() {}
+
+		/**
+		 Adds a block factory under a name for the report, the factory must build a new block per call.
+		 */
+		public Builder addBlock(String name, Supplier<Block> factory) {
+			blocks.put(name, factory);
+			return this;
+		}
+
+		public Builder setEnvironment(EnvFactory environment) {
+			this.environment = environment;
+			return this;
+		}
+
+		/**
+		 Sets the training configuration, created anew per block, e.g. {@link #createConfig(float)}.
+		 */
+		public Builder setConfig(Supplier<TrainingConfig> config) {
+			this.config = config;
+			return this;
+		}
+
+		/**
+		 Sets the shapes to initialize every block with: observation, turn and action of a batch.
+		 */
+		public Builder setInputShapes(Shape... inputShapes) {
+			this.inputShapes = inputShapes;
+			return this;
+		}
+
+		public Builder optBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public Builder optReplaySize(int replaySize) {
+			this.replaySize = replaySize;
+			return this;
+		}
+
+		public Builder optRewardDiscount(float rewardDiscount) {
+			this.rewardDiscount = rewardDiscount;
+			return this;
+		}
+
+		/**
+		 Sets the environment steps per update, 256 by default as in the trainers.
+		 */
+		public Builder optStepsPerUpdate(int stepsPerUpdate) {
+			this.stepsPerUpdate = stepsPerUpdate;
+			return this;
+		}
+
+		/**
+		 Sets the training budget of every block in games, 64 by default.
+		 */
+		public Builder optTrainingGames(int trainingGames) {
+			this.trainingGames = trainingGames;
+			return this;
+		}
+
+		/**
+		 Sets the validation games of every block, 64 by default, few games leave a wide interval.
+		 */
+		public Builder optValidationGames(int validationGames) {
+			this.validationGames = validationGames;
+			return this;
+		}
+
+		/**
+		 Sets the exploration rate of the training games, by default decaying from 1 to 0.1 over the budget.
+		 */
+		public Builder optExploreRate(Tracker exploreRate) {
+			this.exploreRate = exploreRate;
+			return this;
+		}
+
+		public BlockBenchmark build() {
+			if (blocks.isEmpty() || environment == null || config == null || inputShapes == null) {
+				throw new IllegalArgumentException("blocks, environment, config and input shapes must be set");
+			}
+			if (trainingGames <= 0 || validationGames <= 0) {
+				throw new IllegalArgumentException("games must be positive");
+			}
+			if (exploreRate == null) {
+				exploreRate = PolynomialDecayTracker.builder()
+						.setBaseValue(1.0F)
+						.setEndLearningRate(0.1F)
+						.setDecaySteps(trainingGames * 128)
+						.optPower(0.5F)
+						.build();
+			}
+			return new BlockBenchmark(this);
+		}
+	}
+}
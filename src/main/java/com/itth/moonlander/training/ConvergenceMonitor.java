@@ -0,0 +1,201 @@
+package com.itth.moonlander.training;
+
+/**
+ Decides after every epoch whether training goes on, from the validation win rate and mean reward.
+
+ <p>An epoch improves if its win rate beats the best one by {@code minDelta}, or matches it while the mean reward
+ beats the best mean reward. After {@code patience} epochs without improvement the games per epoch are doubled
+ once more data per epoch may still help, at the maximum training stops as plateaued. Consecutive improvements
+ halve the games per epoch down to the minimum, so a fast learning run is validated more often. Training also
+ stops once the win rate stayed at the saturation for {@code patience} epochs, or stayed below
+ {@code collapseRatio} times the best one, which means the run failed.
+ */
+public class ConvergenceMonitor {
+	private final float collapseRatio;
+	private final int maxGamesPerEpoch;
+	private final float minDelta;
+	private final int minGamesPerEpoch;
+	private final int patience;
+	private final float saturation;
+	private float bestReward = Float.NEGATIVE_INFINITY;
+	private float bestWinRate = -1;
+	private int collapsed;
+	private int epochs;
+	private int gamesPerEpoch;
+	private boolean improved;
+	private int improvements;
+	private String reason = "";
+	private int saturated;
+	private int stale;
+
+	private ConvergenceMonitor(Builder builder) {
+		gamesPerEpoch = builder.gamesPerEpoch;
+		minGamesPerEpoch = builder.minGamesPerEpoch;
+		maxGamesPerEpoch = builder.maxGamesPerEpoch;
+		patience = builder.patience;
+		minDelta = builder.minDelta;
+		saturation = builder.saturation;
+		collapseRatio = builder.collapseRatio;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 Takes the validation result of an epoch.
+
+	 @param winRate    the validation win rate
+	 @param meanReward the mean total reward of the validation games
+	 @return the decision, the caller keeps the checkpoint as best one if {@link #isImproved()}, also on
+	 {@link Decision#STOP}
+	 */
+	public Decision update(float winRate, float meanReward) {
+		epochs++;
+		improved = winRate > bestWinRate + minDelta
+				|| winRate >= bestWinRate - minDelta && meanReward > bestReward;
+		if (improved) {
+			bestWinRate = Math.max(bestWinRate, winRate);
+			bestReward = meanReward;
+			stale = 0;
+			improvements++;
+			if (improvements >= 2 && gamesPerEpoch > minGamesPerEpoch) {
+				gamesPerEpoch = Math.max(minGamesPerEpoch, gamesPerEpoch / 2);
+				improvements = 0;
+			}
+		} else {
+			stale++;
+			improvements = 0;
+		}
+		saturated = winRate >= saturation ? saturated + 1 : 0;
+		collapsed = bestWinRate > 0 && winRate < bestWinRate * collapseRatio ? collapsed + 1 : 0;
+		if (saturated >= patience) {
+			reason = "saturated at " + winRate + " for " + saturated + " epochs";
+			return Decision.STOP;
+		}
+		if (collapsed >= patience) {
+			reason = "collapsed to " + winRate + " from " + bestWinRate + " for " + collapsed + " epochs";
+			return Decision.STOP;
+		}
+		if (stale >= patience) {
+			if (gamesPerEpoch >= maxGamesPerEpoch) {
+				reason = "plateau at " + bestWinRate + " for " + stale + " epochs";
+				return Decision.STOP;
+			}
+			gamesPerEpoch = Math.min(maxGamesPerEpoch, gamesPerEpoch * 2);
+			stale = 0;
+		}
+		reason = improved ? "improved to " + winRate + ", reward " + meanReward : "stale for " + stale + " epochs";
+		return improved ? Decision.IMPROVED : Decision.CONTINUE;
+	}
+
+	/**
+	 Returns whether the last epoch improved on the best one, even if training stops after it.
+	 */
+	public boolean isImproved() {
+		return improved;
+	}
+
+	public int getGamesPerEpoch() {
+		return gamesPerEpoch;
+	}
+
+	public float getBestWinRate() {
+		return bestWinRate;
+	}
+
+	public int getEpochs() {
+		return epochs;
+	}
+
+	/**
+	 Returns why the last decision was taken, for logging.
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	public enum Decision {
+		IMPROVED,
+		CONTINUE,
+		STOP
+	}
+
+	public static final class Builder {
+		private float collapseRatio = 0.5F;
+		private int gamesPerEpoch;
+		private int maxGamesPerEpoch;
+		private float minDelta = 0.01F;
+		private int minGamesPerEpoch;
+		private int patience = 8;
+		private float saturation = 1;
+
+		private Builder() {}
+
+		/**
+		 Sets the initial games per epoch, also the default minimum and a quarter of the default maximum.
+		 */
+		public Builder setGamesPerEpoch(int gamesPerEpoch) {
+			this.gamesPerEpoch = gamesPerEpoch;
+			return this;
+		}
+
+		public Builder optMinGamesPerEpoch(int minGamesPerEpoch) {
+			this.minGamesPerEpoch = minGamesPerEpoch;
+			return this;
+		}
+
+		public Builder optMaxGamesPerEpoch(int maxGamesPerEpoch) {
+			this.maxGamesPerEpoch = maxGamesPerEpoch;
+			return this;
+		}
+
+		/**
+		 Sets the epochs without improvement, at saturation or collapsed before acting, 8 by default.
+		 */
+		public Builder optPatience(int patience) {
+			this.patience = patience;
+			return this;
+		}
+
+		/**
+		 Sets the win rate gain counting as improvement, 0.01 by default.
+		 */
+		public Builder optMinDelta(float minDelta) {
+			this.minDelta = minDelta;
+			return this;
+		}
+
+		/**
+		 Sets the win rate at which the run is converged, 1 by default.
+		 */
+		public Builder optSaturation(float saturation) {
+			this.saturation = saturation;
+			return this;
+		}
+
+		/**
+		 Sets the fraction of the best win rate below which the run collapsed, 0.5 by default.
+		 */
+		public Builder optCollapseRatio(float collapseRatio) {
+			this.collapseRatio = collapseRatio;
+			return this;
+		}
+
+		public ConvergenceMonitor build() {
+			if (gamesPerEpoch <= 0) {
+				throw new IllegalArgumentException("games per epoch must be positive");
+			}
+			if (minGamesPerEpoch <= 0) {
+				minGamesPerEpoch = gamesPerEpoch;
+			}
+			if (maxGamesPerEpoch <= 0) {
+				maxGamesPerEpoch = gamesPerEpoch * 4;
+			}
+			if (minGamesPerEpoch > gamesPerEpoch || maxGamesPerEpoch < gamesPerEpoch || patience <= 0) {
+				throw new IllegalArgumentException("invalid convergence bounds");
+			}
+			return new ConvergenceMonitor(this);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.itth.moonlander.training;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ Frees what a replay buffer dropped only once {@link #RETAINED_BATCHES} further batches were sampled from it.
+
+ <p>A batch sampled before a step was dropped may still be stacked by a prefetcher or trained by the learner while
+ the environment adds steps on another thread. Such a batch is done with its steps before its reader samples again,
+ so counting the batches sampled since the drop tells when no batch can refer to the step any more. Without any
+ sampling, e.g. while playing only, nothing is freed until the buffer samples again.
+
+ <p>Not thread safe, the buffers call it under their own lock.
+ */
+final class DeferredRelease {
+	/** The number of batches sampled after a drop before it is freed, enough for prefetching and accumulation. */
+	static final int RETAINED_BATCHES = 8;
+	private final Deque<Retired> retired = new ArrayDeque<>();
+	private long batches;
+
+	/**
+	 Frees the given resource once {@link #RETAINED_BATCHES} batches were sampled from now on.
+	 */
+	void retire(Runnable release) {
+		retired.addLast(new Retired(release, batches));
+	}
+
+	/**
+	 Counts a sampled batch and frees what was retired long enough before.
+	 */
+	void sampled() {
+		batches++;
+		while (!retired.isEmpty() && batches - retired.peekFirst().batch >= RETAINED_BATCHES) {
+			retired.removeFirst().release.run();
+		}
+	}
+
+	/**
+	 Returns the number of retired resources not freed yet.
+	 */
+	int size() {
+		return retired.size();
+	}
+
+	private static final class Retired {
+		private final long batch;
+		private final Runnable release;
+
+		private Retired(Runnable release, long batch) {
+			this.release = release;
+			this.batch = batch;
+		}
+	}
+}
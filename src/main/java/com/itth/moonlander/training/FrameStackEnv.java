@@ -0,0 +1,360 @@
+package com.itth.moonlander.training;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.modality.rl.env.RlEnv;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.util.RandomUtils;
+
+/**
+ An environment which observes the last {@code frames} observations of another one, so an agent can infer motion.
+
+ <p>The first array of an observation is stacked, e.g. the features of {@code BreakoutEnv} and {@code MoonLanderEnv},
+ all other arrays like the turn are taken from the newest observation. Every observation is written once into a
+ circular primitive frame store, whose first {@code frames - 1} frames are mirrored behind its end, so the window of
+ any frame is one contiguous range of the store. {@link #getWindow()} exposes it as a buffer view without copying.
+
+ <p>The replay keeps its own transitions as primitive columns referring to their window by frame number, the post
+ window is the pre window one frame later, thus frames are stored once instead of {@code frames} times per step.
+ A transition is dropped once its window is about to be overwritten. Arrays are created only when a step is read:
+ the arrays of a returned step belong to the step and are freed by closing it, the arrays of a sampled batch stay
+ valid for the next {@link #RETAINED_BATCHES} batches.
+
+ <p>The wrapped environment plays without training, so it does not keep a second replay of the same steps.
+ */
+public class FrameStackEnv implements OutcomeEnv {
+	/** The number of sampled batches whose arrays are kept, enough for prefetching and gradient accumulation. */
+	public static final int RETAINED_BATCHES = 8;
+	private final boolean[] done;
+	private final int[] actions;
+	private final Deque<NDManager> batchManagers = new ArrayDeque<>();
+	private final int batchSize;
+	private final int capacity;
+	private final RlEnv env;
+	private final int frameCapacity;
+	private final int frames;
+	private final NDManager manager;
+	private final long[] preFrames;
+	private final float[] rewards;
+	/** The newest frame of the current window. */
+	private long current = -1;
+	private int extraSize;
+	private Shape[] extraShapes;
+	private float[] extras;
+	private int featureSize;
+	private float[] features;
+	private int first;
+	private NDList observation;
+	private NDManager observationManager;
+	private int size;
+	private long written;
+
+	/**
+	 Constructs a {@link FrameStackEnv}.
+
+	 @param env       the environment to stack the observations of
+	 @param manager   the manager to create the observations and batches under
+	 @param frames    the number of observations to stack
+	 @param batchSize the number of steps to sample per batch
+	 @param capacity  the number of transitions to keep, the frame store keeps twice as many frames
+	 */
+	public FrameStackEnv(RlEnv env, NDManager manager, int frames, int batchSize, int capacity) {
+		if (frames <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException("frames and capacity must be positive");
+		}
+		this.env = env;
+		this.manager = manager;
+		this.frames = frames;
+		this.batchSize = batchSize;
+		this.capacity = capacity;
+		frameCapacity = capacity * 2;
+		preFrames = new long[capacity];
+		actions = new int[capacity];
+		rewards = new float[capacity];
+		done = new boolean[capacity];
+	}
+
+	/**
+	 Resets the wrapped environment and fills the window with its first observation.
+	 */
+	@Override
+	public void reset() {
+		env.reset();
+		final NDList initial = env.getObservation();
+		synchronized (this) {
+			for (int i = 0; i < frames; i++) {
+				write(initial);
+			}
+		}
+	}
+
+	/**
+	 Returns the stacked window and the newest other arrays, freed once the next frame is observed.
+	 */
+	@Override
+	public NDList getObservation() {
+		if (observation == null) {
+			if (observationManager != null) {
+				observationManager.close();
+			}
+			observationManager = manager.newSubManager();
+			observation = materialize(current, observationManager);
+		}
+		return observation;
+	}
+
+	/**
+	 Returns the window of the current observation, a read only view of the frame store.
+	 */
+	public FloatBuffer getWindow() {
+		return window(current).asReadOnlyBuffer();
+	}
+
+	@Override
+	public ActionSpace getActionSpace() {
+		return env.getActionSpace();
+	}
+
+	/**
+	 Returns the outcome of the wrapped environment, which has to be an {@link OutcomeEnv}.
+	 */
+	@Override
+	public boolean isWon() {
+		return OutcomeEnv.isWon(env);
+	}
+
+	/**
+	 Steps the wrapped environment, the caller has to close the returned step.
+	 */
+	@Override
+	public Step step(NDList action, boolean training) {
+		final long pre = current;
+		final float reward;
+		final boolean ended;
+		try (Step step = env.step(action, false)) {
+			reward = step.getReward().getFloat();
+			ended = step.isDone();
+		}
+		final NDList post = env.getObservation();
+		final int move = indexOf(action);
+		synchronized (this) {
+			write(post);
+			if (training) {
+				add(pre, move, reward, ended);
+			}
+		}
+		return new FrameStep(manager.newSubManager(), true, pre, move, reward, ended);
+	}
+
+	/**
+	 Samples {@code batchSize} transitions with replacement, none while the replay is empty.
+	 */
+	@Override
+	public synchronized Step[] getBatch() {
+		evict();
+		if (size == 0) {
+			return new Step[0];
+		}
+		final NDManager batchManager = manager.newSubManager();
+		batchManagers.addLast(batchManager);
+		if (batchManagers.size() > RETAINED_BATCHES) {
+			batchManagers.removeFirst().close();
+		}
+		final Step[] batch = new Step[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			final int transition = (first + RandomUtils.nextInt(size)) % capacity;
+			batch[i] = new FrameStep(batchManager, false, preFrames[transition], actions[transition], rewards[transition], done[transition]);
+		}
+		return batch;
+	}
+
+	/**
+	 Returns the number of transitions held by the replay.
+	 */
+	public synchronized int getReplaySize() {
+		return size;
+	}
+
+	public int getReplayCapacity() {
+		return capacity;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	/**
+	 Closes the observations and batches of this environment, not the wrapped one.
+	 */
+	@Override
+	public synchronized void close() {
+		if (observationManager != null) {
+			observationManager.close();
+		}
+		while (!batchManagers.isEmpty()) {
+			batchManagers.removeFirst().close();
+		}
+	}
+
+	private void write(NDList observation) {
+		final float[] frame = observation.get(0).toFloatArray();
+		if (features == null) {
+			allocate(observation, frame.length);
+		}
+		final long number = written++;
+		final int position = (int)(number % frameCapacity);
+		System.arraycopy(frame, 0, features, position * featureSize, featureSize);
+		if (position < frames - 1) {
+			System.arraycopy(frame, 0, features, (frameCapacity + position) * featureSize, featureSize);
+		}
+		int offset = position * extraSize;
+		for (int i = 1; i < observation.size(); i++) {
+			final float[] extra = observation.get(i).toFloatArray();
+			System.arraycopy(extra, 0, extras, offset, extra.length);
+			offset += extra.length;
+		}
+		current = number;
+		this.observation = null;
+	}
+
+	private void allocate(NDList observation, int frameSize) {
+		featureSize = frameSize;
+		features = new float[(frameCapacity + frames - 1) * featureSize];
+		extraShapes = new Shape[observation.size() - 1];
+		for (int i = 1; i < observation.size(); i++) {
+			extraShapes[i - 1] = observation.get(i).getShape();
+			extraSize += (int)extraShapes[i - 1].size();
+		}
+		extras = new float[frameCapacity * extraSize];
+	}
+
+	private void add(long pre, int move, float reward, boolean ended) {
+		final int transition;
+		if (size == capacity) {
+			transition = first;
+			first = (first + 1) % capacity;
+		} else {
+			transition = (first + size) % capacity;
+			size++;
+		}
+		preFrames[transition] = pre;
+		actions[transition] = move;
+		rewards[transition] = reward;
+		done[transition] = ended;
+	}
+
+	/**
+	 Drops the oldest transitions whose window starts more than {@code capacity} frames ago, the other half of the
+	 frame store is headroom for batches read while the environment plays.
+	 */
+	private void evict() {
+		while (size > 0 && preFrames[first] - frames + 1 < written - capacity) {
+			first = (first + 1) % capacity;
+			size--;
+		}
+	}
+
+	private FloatBuffer window(long frame) {
+		int start = (int)(frame % frameCapacity) - frames + 1;
+		if (start < 0) {
+			start += frameCapacity;
+		}
+		return FloatBuffer.wrap(features, start * featureSize, frames * featureSize).slice();
+	}
+
+	private NDList materialize(long frame, NDManager manager) {
+		final NDList list = new NDList(extraShapes.length + 1);
+		list.add(manager.create(window(frame), new Shape(frames * (long)featureSize)));
+		int offset = (int)(frame % frameCapacity) * extraSize;
+		for (Shape shape : extraShapes) {
+			list.add(manager.create(FloatBuffer.wrap(extras, offset, (int)shape.size()).slice(), shape));
+			offset += (int)shape.size();
+		}
+		return list;
+	}
+
+	private int indexOf(NDList action) {
+		final ActionSpace actionSpace = env.getActionSpace();
+		for (int i = 0; i < actionSpace.size(); i++) {
+			if (actionSpace.get(i) == action) {
+				return i;
+			}
+		}
+		return actionSpace.indexOf(action);
+	}
+
+	/**
+	 A transition referring to its windows, the arrays are created on first read.
+	 */
+	private final class FrameStep implements Step {
+		private final int action;
+		private final boolean done;
+		private final NDManager manager;
+		private final boolean ownsManager;
+		private final long preFrame;
+		private final float reward;
+		private NDList postObservation;
+		private NDList preObservation;
+		private NDArray rewardArray;
+
+		private FrameStep(NDManager manager, boolean ownsManager, long preFrame, int action, float reward, boolean done) {
+			this.manager = manager;
+			this.ownsManager = ownsManager;
+			this.preFrame = preFrame;
+			this.action = action;
+			this.reward = reward;
+			this.done = done;
+		}
+
+		@Override
+		public NDList getPreObservation() {
+			if (preObservation == null) {
+				preObservation = materialize(preFrame, manager);
+			}
+			return preObservation;
+		}
+
+		@Override
+		public NDList getAction() {
+			return env.getActionSpace().get(action);
+		}
+
+		@Override
+		public NDList getPostObservation() {
+			if (postObservation == null) {
+				postObservation = materialize(preFrame + 1, manager);
+			}
+			return postObservation;
+		}
+
+		@Override
+		public ActionSpace getPostActionSpace() {
+			return env.getActionSpace();
+		}
+
+		@Override
+		public NDArray getReward() {
+			if (rewardArray == null) {
+				rewardArray = manager.create(reward);
+			}
+			return rewardArray;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public void close() {
+			if (ownsManager) {
+				manager.close();
+			}
+		}
+	}
+}
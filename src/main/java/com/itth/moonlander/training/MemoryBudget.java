@@ -0,0 +1,122 @@
+package com.itth.moonlander.training;
+
+import java.util.Locale;
+import java.util.regex.*;
+
+/**
+ A memory budget in bytes, split between the replay buffer, other live tensors and the episode statistics.
+ */
+public class MemoryBudget {
+	private static final Pattern PATTERN = Pattern.compile("\\s*([0-9]+(?:\\.[0-9]+)?)\\s*([KMGT]?)(I?)(B?)\\s*");
+	private final long replayBytes;
+	private final long statsBytes;
+	private final long tensorBytes;
+	private final long total;
+
+	private MemoryBudget(Builder builder) {
+		total = builder.total;
+		final float shares = builder.replayShare + builder.tensorShare + builder.statsShare;
+		replayBytes = (long)(total * (builder.replayShare / shares));
+		tensorBytes = (long)(total * (builder.tensorShare / shares));
+		statsBytes = total - replayBytes - tensorBytes;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 Parses sizes like "4 GiB", "512M" or "1.5 GB". Units without "i" and with "B" are decimal, "K", "M", "G" and
+	 "T" alone are binary.
+
+	 @return the size in bytes
+	 */
+	public static long parse(String size) {
+		final Matcher matcher = PATTERN.matcher(size.toUpperCase(Locale.ROOT));
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("not a memory size: " + size);
+		}
+		final String unit = matcher.group(2);
+		final boolean decimal = matcher.group(3).isEmpty() && !matcher.group(4).isEmpty();
+		final int exponent = unit.isEmpty() ? 0 : "KMGT".indexOf(unit) + 1;
+		final double factor = Math.pow(decimal ? 1000 : 1024, exponent);
+		return (long)(Double.parseDouble(matcher.group(1)) * factor);
+	}
+
+	/**
+	 Returns the number of steps of the given size fitting into the replay share.
+	 */
+	public int replayCapacity(long bytesPerStep) {
+		return (int)Math.min(Integer.MAX_VALUE, replayBytes / bytesPerStep);
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public long getReplayBytes() {
+		return replayBytes;
+	}
+
+	public long getTensorBytes() {
+		return tensorBytes;
+	}
+
+	public long getStatsBytes() {
+		return statsBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d MiB (replay %d MiB, tensors %d MiB, stats %d MiB)",
+				total >> 20, replayBytes >> 20, tensorBytes >> 20, statsBytes >> 20);
+	}
+
+	public static final class Builder {
+		private float replayShare = 0.6F;
+		private float statsShare = 0.1F;
+		private float tensorShare = 0.3F;
+		private long total;
+
+		private Builder() {}
+
+		/**
+		 Sets the total budget, e.g. "4 GiB".
+		 */
+		public Builder setTotal(String total) {
+			this.total = parse(total);
+			return this;
+		}
+
+		/**
+		 Sets the relative share of the replay buffer, 0.6 by default.
+		 */
+		public Builder optReplayShare(float replayShare) {
+			this.replayShare = replayShare;
+			return this;
+		}
+
+		/**
+		 Sets the relative share of all other tensors, 0.3 by default.
+		 */
+		public Builder optTensorShare(float tensorShare) {
+			this.tensorShare = tensorShare;
+			return this;
+		}
+
+		/**
+		 Sets the relative share of the episode statistics, 0.1 by default.
+		 */
+		public Builder optStatsShare(float statsShare) {
+			this.statsShare = statsShare;
+			return this;
+		}
+
+		public MemoryBudget build() {
+			if (total <= 0 || replayShare < 0 || tensorShare < 0 || statsShare < 0 || replayShare + tensorShare + statsShare <= 0) {
+				throw new IllegalArgumentException("invalid memory budget");
+			}
+			return new MemoryBudget(this);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package com.itth.moonlander.training;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.*;
+
+import com.itth.moonlander.metrics.EpisodeStats;
+import com.itth.moonlander.metrics.NDMemoryTracker;
+import com.itth.moonlander.metrics.NDMemoryTracker.Usage;
+
+/**
+ Keeps the replay buffer, the other live tensors and the episode statistics within a {@link MemoryBudget}.
+
+ <p>Actors call {@link #admit()} before every game. At most once per check interval it measures and applies
+ backpressure in order of cost: statistics beyond their share are spilled to disk, a replay buffer beyond its share
+ is shrunk and drops its oldest steps, and while the other tensors exceed their share the actor is paused until
+ the learner released enough of them or the pause timed out. Pausing is only enabled by {@link #setPausing(boolean)}
+ for an actor playing concurrently to the learner, otherwise nothing could be released meanwhile and the excess is
+ only logged.
+
+ <p>The replay bytes are the native bytes of the manager registered as replay manager plus a fixed JVM overhead per
+ step, all other registered managers count as tensors.
+ */
+public class MemoryGovernor {
+	/**
+	 The approximate JVM bytes of a step beside its arrays: the step, two states, lists, array handles and the sub
+	 manager.
+	 */
+	public static final int STEP_OVERHEAD_BYTES = 1024;
+	protected final static Logger logger = LogManager.getLogger(MemoryGovernor.class);
+	private static final long PAUSE_POLL_MILLIS = 100;
+	private final MemoryBudget budget;
+	private final long checkIntervalNanos;
+	private final long maxPauseNanos;
+	private final int minReplayCapacity;
+	private final ResizableReplayBuffer replay;
+	private final String replayManager;
+	private final EpisodeStats stats;
+	private final NDMemoryTracker tracker;
+	private long lastCheck = System.nanoTime();
+	private boolean pausing;
+
+	/**
+	 Constructs a {@link MemoryGovernor}.
+
+	 @param budget        the budget to keep
+	 @param tracker       the tracker all managers to govern are registered with
+	 @param replayManager the name the manager of the replay steps is registered under
+	 @param replay        the replay buffer to shrink, may be null
+	 @param stats         the statistics to spill, may be null
+	 */
+	public MemoryGovernor(MemoryBudget budget, NDMemoryTracker tracker, String replayManager, ResizableReplayBuffer replay, EpisodeStats stats) {
+		this.budget = budget;
+		this.tracker = tracker;
+		this.replayManager = replayManager;
+		this.replay = replay;
+		this.stats = stats;
+		checkIntervalNanos = TimeUnit.SECONDS.toNanos(10);
+		maxPauseNanos = TimeUnit.SECONDS.toNanos(30);
+		minReplayCapacity = replay == null ? 0 : replay.getBatchSize();
+	}
+
+	/**
+	 Estimates the bytes of one step holding pre and post observation and a reward as floats.
+	 */
+	public static long estimateStepBytes(int observationFloats) {
+		return STEP_OVERHEAD_BYTES + 4L * (2 * observationFloats + 1);
+	}
+
+	/**
+	 Returns the maximum number of statistics rows fitting into the stats share.
+	 */
+	public static int statsRows(MemoryBudget budget) {
+		return (int)Math.min(Integer.MAX_VALUE, budget.getStatsBytes() / EpisodeStats.ROW_BYTES);
+	}
+
+	/**
+	 Pauses the actor while the tensors exceed their share, only useful if the actor is not the thread which trains
+	 and frees the tensors. Disabled by default.
+	 */
+	public void setPausing(boolean pausing) {
+		this.pausing = pausing;
+	}
+
+	/**
+	 Applies backpressure if the last check is longer ago than the check interval, may block the calling actor.
+	 */
+	public void admit() {
+		final long now = System.nanoTime();
+		if (now - lastCheck < checkIntervalNanos) {
+			return;
+		}
+		lastCheck = now;
+		if (stats != null && (long)stats.size() * EpisodeStats.ROW_BYTES > budget.getStatsBytes()) {
+			logger.warn("episode statistics exceed {} MiB, spilling", budget.getStatsBytes() >> 20);
+			stats.flush();
+		}
+		final long replayBytes = shrinkReplay(tracker.measure());
+		long tensorBytes = tensorBytes(tracker.getUsages());
+		if (tensorBytes <= budget.getTensorBytes()) {
+			return;
+		}
+		if (!pausing) {
+			logger.warn("tensors use {} MiB of {} MiB, replay {} MiB", tensorBytes >> 20, budget.getTensorBytes() >> 20, replayBytes >> 20);
+			return;
+		}
+		logger.warn("tensors use {} MiB of {} MiB, pausing, replay {} MiB", tensorBytes >> 20, budget.getTensorBytes() >> 20, replayBytes >> 20);
+		final long pauseStart = System.nanoTime();
+		while (tensorBytes > budget.getTensorBytes() && System.nanoTime() - pauseStart < maxPauseNanos) {
+			try {
+				Thread.sleep(PAUSE_POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			tensorBytes = tensorBytes(tracker.measure());
+		}
+		if (tensorBytes > budget.getTensorBytes()) {
+			logger.warn("tensors still use {} MiB after pausing, continuing", tensorBytes >> 20);
+		}
+	}
+
+	private long shrinkReplay(Map<String, Usage> usages) {
+		final Usage usage = usages.get(replayManager);
+		if (replay == null) {
+			return usage == null ? 0 : usage.getBytes();
+		}
+		final int size = replay.size();
+		final long replayBytes = (usage == null ? 0 : usage.getBytes()) + (long)size * STEP_OVERHEAD_BYTES;
+		if (replayBytes <= budget.getReplayBytes() || size == 0) {
+			return replayBytes;
+		}
+		final long bytesPerStep = Math.max(1, replayBytes / size);
+		final int capacity = Math.max(minReplayCapacity, (int)Math.min(replay.getCapacity(), budget.getReplayBytes() * 9 / 10 / bytesPerStep));
+		if (capacity < replay.getCapacity()) {
+			logger.warn("replay uses {} MiB of {} MiB, shrinking to {} steps", replayBytes >> 20, budget.getReplayBytes() >> 20, capacity);
+			replay.setCapacity(capacity);
+		}
+		return replayBytes;
+	}
+
+	private long tensorBytes(Map<String, Usage> usages) {
+		long bytes = 0;
+		for (Map.Entry<String, Usage> entry : usages.entrySet()) {
+			if (!entry.getKey().equals(replayManager)) {
+				bytes += entry.getValue().getBytes();
+			}
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,27 @@
+package com.itth.moonlander.training;
+
+import ai.djl.modality.rl.env.RlEnv;
+
+/**
+ An environment which tells whether the episode it just played was won, by the rules of its game instead of the
+ sign of the total reward, which depends on the reward function.
+ */
+public interface OutcomeEnv extends RlEnv {
+
+	/**
+	 Returns whether the episode which just ended was won, valid until the next reset.
+	 */
+	boolean isWon();
+
+	/**
+	 Returns the outcome of the given environment, which has to be an {@link OutcomeEnv}.
+
+	 @throws IllegalArgumentException if the environment tells no outcome
+	 */
+	static boolean isWon(RlEnv env) {
+		if (!(env instanceof OutcomeEnv)) {
+			throw new IllegalArgumentException("the environment tells no outcome: " + env.getClass().getName());
+		}
+		return ((OutcomeEnv)env).isWon();
+	}
+}
@@ -0,0 +1,305 @@
+package com.itth.moonlander.training;
+
+import ai.djl.modality.rl.ReplayBuffer;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.ndarray.NDManager;
+import ai.djl.util.RandomUtils;
+
+/**
+ A replay buffer for environments whose transitions fit into a {@code long}, e.g. discrete observations and actions.
+
+ <p>Every transition is packed into a key by a {@link Codec}. Identical keys share one slot with a count, the slots
+ hold the keys in a {@code long[]} and a Fenwick tree over the counts, so sampling draws every held transition with
+ equal probability, thus a key in proportion to its count, in {@code O(log slots)}. The recency order is a ring of
+ slot numbers, 4 bytes per transition instead of a step with its arrays. A slot is decoded into a step once, on its
+ first use, under its own manager. Compacting drops the slots whose count fell to zero, their managers are closed
+ once {@link DeferredRelease#RETAINED_BATCHES} more batches were sampled, so batches sampled before and steps
+ returned by {@link #get(long)} stay valid while they are stacked or played. The steps stay owned by the buffer, closing them must not free their arrays as callers like
+ {@link ai.djl.modality.rl.env.RlEnv#runEnvironment} close every step they get.
+
+ <p>All methods synchronize on the buffer, as the environments do around it.
+ */
+public class PackedReplayBuffer implements ReplayBuffer {
+	private static final int INITIAL_SLOTS = 1024;
+	private final int batchSize;
+	private final Codec codec;
+	private final NDManager manager;
+	private final DeferredRelease dropped = new DeferredRelease();
+	private int[] counts;
+	private Step[] decoded;
+	private NDManager[] decodedManagers;
+	private int first;
+	/** Open addressing from key to slot + 1, 0 is empty. */
+	private int[] index;
+	private long[] keys;
+	private int[] ring;
+	private int size;
+	private int slots;
+	/** Fenwick tree over the counts, 1-based. */
+	private int[] tree;
+
+	/**
+	 Constructs a {@link PackedReplayBuffer}.
+
+	 @param batchSize the number of steps to sample per batch
+	 @param capacity  the initial number of transitions to keep
+	 @param codec     packs and unpacks the transitions
+	 @param manager   the manager to create the managers of the decoded steps under
+	 */
+	public PackedReplayBuffer(int batchSize, int capacity, Codec codec, NDManager manager) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.batchSize = batchSize;
+		this.codec = codec;
+		this.manager = manager;
+		ring = new int[capacity];
+		allocate(INITIAL_SLOTS);
+	}
+
+	/**
+	 Adds a transition, the oldest one is dropped once the buffer is full.
+
+	 @return the step of the key, owned by the buffer
+	 */
+	public synchronized Step add(long key) {
+		final int slot = slotOf(key);
+		if (size == ring.length) {
+			remove(ring[first]);
+			ring[first] = slot;
+			first = (first + 1) % ring.length;
+		} else {
+			ring[(first + size) % ring.length] = slot;
+			size++;
+		}
+		counts[slot]++;
+		update(slot, 1);
+		return step(slot);
+	}
+
+	/**
+	 Returns the step of a key without adding the transition, e.g. for a validation game.
+
+	 @return the step of the key, owned by the buffer
+	 */
+	public synchronized Step get(long key) {
+		return step(slotOf(key));
+	}
+
+	/**
+	 Packs and adds the given step, which is closed as the buffer only keeps its key.
+	 */
+	@Override
+	public void addStep(Step step) {
+		final long key = codec.encode(step);
+		step.close();
+		add(key);
+	}
+
+	/**
+	 Samples {@code batchSize} transitions with replacement, none while the buffer is empty.
+	 */
+	@Override
+	public synchronized Step[] getBatch() {
+		if (size == 0) {
+			return new Step[0];
+		}
+		dropped.sampled();
+		final Step[] batch = new Step[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batch[i] = step(find(RandomUtils.nextInt(size)));
+		}
+		return batch;
+	}
+
+	/**
+	 Changes the capacity, a smaller one drops the oldest transitions.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		final int kept = Math.min(size, capacity);
+		for (int i = 0; i < size - kept; i++) {
+			remove(ring[(first + i) % ring.length]);
+		}
+		final int[] resized = new int[capacity];
+		for (int i = 0; i < kept; i++) {
+			resized[i] = ring[(first + size - kept + i) % ring.length];
+		}
+		ring = resized;
+		first = 0;
+		size = kept;
+	}
+
+	public synchronized int getCapacity() {
+		return ring.length;
+	}
+
+	/**
+	 Returns the number of transitions held, counting duplicates.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 Returns the number of distinct transitions held.
+	 */
+	public synchronized int getDistinct() {
+		int distinct = 0;
+		for (int slot = 0; slot < slots; slot++) {
+			if (counts[slot] > 0) {
+				distinct++;
+			}
+		}
+		return distinct;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 Returns the number of held transitions with the given key, without adding a slot for it.
+	 */
+	synchronized int getCount(long key) {
+		final int mask = index.length - 1;
+		for (int i = hash(key) & mask; index[i] != 0; i = (i + 1) & mask) {
+			if (keys[index[i] - 1] == key) {
+				return counts[index[i] - 1];
+			}
+		}
+		return 0;
+	}
+
+	private Step step(int slot) {
+		if (decoded[slot] == null) {
+			decodedManagers[slot] = manager.newSubManager();
+			decoded[slot] = codec.decode(keys[slot], decodedManagers[slot]);
+		}
+		return decoded[slot];
+	}
+
+	private void remove(int slot) {
+		counts[slot]--;
+		update(slot, -1);
+	}
+
+	private int slotOf(long key) {
+		final int mask = index.length - 1;
+		int i = hash(key) & mask;
+		while (index[i] != 0) {
+			if (keys[index[i] - 1] == key) {
+				return index[i] - 1;
+			}
+			i = (i + 1) & mask;
+		}
+		if (slots == keys.length) {
+			// Reuse the slots which no transition refers to any more, grow if that frees too few
+			final int live = getDistinct();
+			allocate(live <= keys.length / 2 ? keys.length : keys.length * 2);
+			return slotOf(key);
+		}
+		keys[slots] = key;
+		index[i] = slots + 1;
+		return slots++;
+	}
+
+	/**
+	 Allocates the slot arrays for the given number of slots, keeping only slots with a count and renumbering the
+	 ring accordingly.
+	 */
+	private void allocate(int capacity) {
+		final long[] oldKeys = keys;
+		final int[] oldCounts = counts;
+		final Step[] oldDecoded = decoded;
+		final NDManager[] oldManagers = decodedManagers;
+		final int oldSlots = slots;
+		keys = new long[capacity];
+		counts = new int[capacity];
+		decoded = new Step[capacity];
+		decodedManagers = new NDManager[capacity];
+		tree = new int[capacity + 1];
+		index = new int[capacity * 2];
+		slots = 0;
+		if (oldKeys == null) {
+			return;
+		}
+		final int[] renumbered = new int[oldSlots];
+		final int mask = index.length - 1;
+		for (int slot = 0; slot < oldSlots; slot++) {
+			if (oldCounts[slot] == 0) {
+				if (oldManagers[slot] != null) {
+					dropped.retire(oldManagers[slot]::close);
+				}
+				continue;
+			}
+			keys[slots] = oldKeys[slot];
+			counts[slots] = oldCounts[slot];
+			decoded[slots] = oldDecoded[slot];
+			decodedManagers[slots] = oldManagers[slot];
+			int i = hash(oldKeys[slot]) & mask;
+			while (index[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			index[i] = slots + 1;
+			renumbered[slot] = slots++;
+		}
+		for (int i = 0; i < size; i++) {
+			final int position = (first + i) % ring.length;
+			ring[position] = renumbered[ring[position]];
+		}
+		// Fenwick tree in linear time, every node passes its sum on to its parent
+		for (int node = 1; node <= capacity; node++) {
+			tree[node] += counts[node - 1];
+			final int parent = node + (node & -node);
+			if (parent <= capacity) {
+				tree[parent] += tree[node];
+			}
+		}
+	}
+
+	private void update(int slot, int delta) {
+		for (int node = slot + 1; node < tree.length; node += node & -node) {
+			tree[node] += delta;
+		}
+	}
+
+	/**
+	 Returns the slot the given transition, counted over all slots in order, falls into.
+	 */
+	private int find(int transition) {
+		int node = 0;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			final int next = node + step;
+			if (next < tree.length && tree[next] <= transition) {
+				node = next;
+				transition -= tree[next];
+			}
+		}
+		return node;
+	}
+
+	private static int hash(long key) {
+		final long mixed = key * 0x9E3779B97F4A7C15L;
+		return (int)(mixed ^ mixed >>> 32);
+	}
+
+	/**
+	 Packs the transitions of an environment into keys and unpacks them into steps.
+	 */
+	public interface Codec {
+
+		/**
+		 Packs a step, equal transitions must give equal keys.
+		 */
+		long encode(Step step);
+
+		/**
+		 Unpacks a key into a step whose arrays belong to the given manager. The buffer closes the manager some batches
+		 after the step was dropped, closing the step itself has to keep its arrays.
+		 */
+		Step decode(long key, NDManager manager);
+	}
+}
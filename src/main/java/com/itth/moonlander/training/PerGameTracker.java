@@ -0,0 +1,40 @@
+package com.itth.moonlander.training;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import ai.djl.training.tracker.Tracker;
+
+/**
+ Steps a tracker by the number of finished games instead of the optimizer update it is asked for.
+
+ <p>The {@link UpdateScheduler} runs as many updates per game as the game had steps, so a schedule sized in games,
+ like {@code epoch * gamesPerEpoch}, would end after a fraction of the training when stepped per update. Wrapped,
+ it follows the games reported by {@link #gamePlayed()}. Games beyond its length keep the value it ends with, e.g.
+ once the convergence monitor prolonged the epochs. As main tracker of a warm-up the warm-up still counts updates.
+ */
+public class PerGameTracker implements Tracker {
+	private final AtomicInteger games = new AtomicInteger();
+	private final Tracker tracker;
+
+	public PerGameTracker(Tracker tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 Returns the value of the wrapped tracker at the number of games played so far, ignoring the update.
+	 */
+	@Override
+	public float getNewValue(int numUpdate) {
+		return tracker.getNewValue(games.get());
+	}
+
+	/**
+	 Counts a finished training game, may be called from another thread than the optimizer's.
+	 */
+	public void gamePlayed() {
+		games.incrementAndGet();
+	}
+
+	public int getGames() {
+		return games.get();
+	}
+}
@@ -0,0 +1,104 @@
+package com.itth.moonlander.training;
+
+import java.util.function.Supplier;
+import ai.djl.Device;
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.modality.rl.agent.RlAgent;
+import ai.djl.modality.rl.env.RlEnv;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.ndarray.*;
+import ai.djl.ndarray.types.*;
+import ai.djl.nn.*;
+import ai.djl.training.ParameterStore;
+import ai.djl.translate.Batchifier;
+
+import com.itth.moonlander.ActionScorer;
+import com.itth.moonlander.ExplorationStrategy;
+
+/**
+ A frozen copy of a Q network which can act while the original is trained.
+
+ <p>The snapshot owns an independent block built by the same factory as the trained one, so copying the
+ parameters is the only point where both have to be in sync. Acting on a snapshot never touches the arrays the
+ optimizer writes to.
+ */
+public class PolicySnapshot implements ActionScorer, AutoCloseable {
+	private final Block block;
+	private final NDManager manager;
+	private final ParameterStore parameterStore;
+
+	/**
+	 Constructs a {@link PolicySnapshot}.
+
+	 @param factory     the factory which built the trained block
+	 @param device      the device to keep the copied parameters on
+	 @param inputShapes the shapes the trained block was initialized with
+	 */
+	public PolicySnapshot(Supplier<Block> factory, Device device, Shape... inputShapes) {
+		manager = NDManager.newBaseManager(device);
+		block = factory.get();
+		block.initialize(manager, DataType.FLOAT32, inputShapes);
+		parameterStore = new ParameterStore(manager, false);
+	}
+
+	/**
+	 Copies all parameters of the source block, which has to be built by the same factory.
+
+	 <p>Must not be called while this snapshot is acting.
+	 */
+	public void copyFrom(Block source) {
+		final ParameterList sourceParameters = source.getParameters();
+		final ParameterList targetParameters = block.getParameters();
+		if (sourceParameters.size() != targetParameters.size()) {
+			throw new IllegalArgumentException("source block does not match the snapshot");
+		}
+		for (int i = 0; i < sourceParameters.size(); i++) {
+			sourceParameters.get(i).getValue().getArray().copyTo(targetParameters.get(i).getValue().getArray());
+		}
+	}
+
+	/**
+	 Computes the Q-value of every action of the action space in one forward pass.
+	 */
+	@Override
+	public float[] scoreActions(NDList observation, ActionSpace actionSpace) {
+		final NDList[] inputs = new NDList[actionSpace.size()];
+		for (int i = 0; i < inputs.length; i++) {
+			inputs[i] = new NDList().addAll(observation).addAll(actionSpace.get(i));
+		}
+		try (NDManager scope = manager.newSubManager()) {
+			final NDList batch = Batchifier.STACK.batchify(inputs);
+			batch.attach(scope);
+			final NDArray scores = block.forward(parameterStore, batch, false).singletonOrThrow();
+			scores.attach(scope);
+			return scores.toFloatArray();
+		}
+	}
+
+	/**
+	 Returns a greedy agent acting on this snapshot. The agent cannot be trained.
+	 */
+	public RlAgent agent() {
+		return new RlAgent() {
+			@Override
+			public NDList chooseAction(RlEnv env, boolean training) {
+				final ActionSpace actionSpace = env.getActionSpace();
+				return actionSpace.get(ExplorationStrategy.argMax(scoreActions(env.getObservation(), actionSpace)));
+			}
+
+			@Override
+			public void trainBatch(Step[] batchSteps) {
+				throw new UnsupportedOperationException("a policy snapshot is not trainable");
+			}
+		};
+	}
+
+	public Block getBlock() {
+		return block;
+	}
+
+	@Override
+	public void close() {
+		manager.close();
+	}
+}
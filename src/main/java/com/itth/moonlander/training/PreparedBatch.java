@@ -0,0 +1,98 @@
+package com.itth.moonlander.training;
+
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.ndarray.*;
+import ai.djl.translate.Batchifier;
+
+/**
+ A replay batch whose observations, actions, rewards and next observations are already stacked into the arrays
+ a Q network consumes.
+
+ <p>The pre input holds one row per step, the post input one row per step and post action, thus
+ {@code batchSize * actionCount} rows. All arrays belong to the batch's own manager and are freed on
+ {@link #close()}.
+ */
+public final class PreparedBatch implements AutoCloseable {
+	private final int actionCount;
+	private final int batchSize;
+	private final NDManager manager;
+	private final NDArray notDone;
+	private final NDList postInput;
+	private final NDList preInput;
+	private final NDArray rewards;
+
+	private PreparedBatch(NDManager manager, NDList preInput, NDList postInput, NDArray rewards, NDArray notDone, int batchSize, int actionCount) {
+		this.manager = manager;
+		this.preInput = preInput;
+		this.postInput = postInput;
+		this.rewards = rewards;
+		this.notDone = notDone;
+		this.batchSize = batchSize;
+		this.actionCount = actionCount;
+	}
+
+	/**
+	 Stacks the given steps. All steps must share the size of their post action space.
+
+	 @param steps   the sampled steps
+	 @param manager the manager the batch takes ownership of
+	 */
+	public static PreparedBatch of(Step[] steps, NDManager manager) {
+		final int actionCount = steps[0].getPostActionSpace().size();
+		final NDList[] pre = new NDList[steps.length];
+		final NDList[] post = new NDList[steps.length * actionCount];
+		final NDList rewards = new NDList(steps.length);
+		final float[] notDone = new float[steps.length];
+		for (int i = 0; i < steps.length; i++) {
+			final Step step = steps[i];
+			pre[i] = new NDList().addAll(step.getPreObservation()).addAll(step.getAction());
+			final NDList postObservation = step.getPostObservation();
+			final ActionSpace postActions = step.getPostActionSpace();
+			for (int a = 0; a < actionCount; a++) {
+				post[i * actionCount + a] = new NDList().addAll(postObservation).addAll(postActions.get(a));
+			}
+			rewards.add(step.getReward());
+			notDone[i] = step.isDone() ? 0 : 1;
+		}
+		final NDList preInput = Batchifier.STACK.batchify(pre);
+		final NDList postInput = Batchifier.STACK.batchify(post);
+		final NDArray stackedRewards = NDArrays.stack(rewards);
+		preInput.attach(manager);
+		postInput.attach(manager);
+		stackedRewards.attach(manager);
+		return new PreparedBatch(manager, preInput, postInput, stackedRewards, manager.create(notDone), steps.length, actionCount);
+	}
+
+	public int getActionCount() {
+		return actionCount;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 One for every step which did not end its game, zero otherwise.
+	 */
+	public NDArray getNotDone() {
+		return notDone;
+	}
+
+	public NDList getPostInput() {
+		return postInput;
+	}
+
+	public NDList getPreInput() {
+		return preInput;
+	}
+
+	public NDArray getRewards() {
+		return rewards;
+	}
+
+	@Override
+	public void close() {
+		manager.close();
+	}
+}
@@ -0,0 +1,95 @@
+package com.itth.moonlander.training;
+
+import ai.djl.modality.rl.ReplayBuffer;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.util.RandomUtils;
+
+/**
+ A replay buffer like {@link ai.djl.modality.rl.LruReplayBuffer} whose capacity can change while it is filled.
+
+ <p>The oldest steps are replaced first and closed once they left the buffer, either replaced or dropped by a
+ smaller capacity, and {@link DeferredRelease#RETAINED_BATCHES} more batches were sampled. Thus a batch stays valid
+ while it is trained or stacked on another thread than the one adding steps. All methods synchronize on the buffer,
+ as the environments do around it.
+ */
+public class ResizableReplayBuffer implements ReplayBuffer {
+	private final int batchSize;
+	private final DeferredRelease dropped = new DeferredRelease();
+	private int first;
+	private int size;
+	private Step[] steps;
+
+	/**
+	 Constructs a {@link ResizableReplayBuffer}.
+
+	 @param batchSize the number of steps to sample per batch
+	 @param capacity  the initial number of steps to keep
+	 */
+	public ResizableReplayBuffer(int batchSize, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.batchSize = batchSize;
+		steps = new Step[capacity];
+	}
+
+	/**
+	 Samples {@code batchSize} steps with replacement, none while the buffer is empty.
+	 */
+	@Override
+	public synchronized Step[] getBatch() {
+		if (size == 0) {
+			return new Step[0];
+		}
+		dropped.sampled();
+		final Step[] batch = new Step[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batch[i] = steps[(first + RandomUtils.nextInt(size)) % steps.length];
+		}
+		return batch;
+	}
+
+	@Override
+	public synchronized void addStep(Step step) {
+		if (size == steps.length) {
+			dropped.retire(steps[first]::close);
+			steps[first] = step;
+			first = (first + 1) % steps.length;
+		} else {
+			steps[(first + size) % steps.length] = step;
+			size++;
+		}
+	}
+
+	/**
+	 Changes the capacity, a smaller one drops the oldest steps, closed like replaced ones.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		final int kept = Math.min(size, capacity);
+		for (int i = 0; i < size - kept; i++) {
+			dropped.retire(steps[(first + i) % steps.length]::close);
+		}
+		final Step[] resized = new Step[capacity];
+		for (int i = 0; i < kept; i++) {
+			resized[i] = steps[(first + size - kept + i) % steps.length];
+		}
+		steps = resized;
+		first = 0;
+		size = kept;
+	}
+
+	public synchronized int getCapacity() {
+		return steps.length;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+}
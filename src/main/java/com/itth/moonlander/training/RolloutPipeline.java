@@ -0,0 +1,89 @@
+package com.itth.moonlander.training;
+
+import java.util.concurrent.*;
+import ai.djl.nn.Block;
+
+/**
+ Overlaps playing a game with the gradient updates for the game before.
+
+ <p>Each {@link #run(Callable, Runnable)} starts the rollout on a background thread against a
+ {@link PolicySnapshot} and runs the updates on the calling thread at the same time, thus a round takes about as
+ long as the slower of both instead of their sum. The snapshot is refreshed from the trained block every
+ {@code maxStaleness} rounds, which bounds how many rounds of updates the acting policy lags behind. A staleness
+ of zero disables the overlap: the updates run first and the rollout then plays against fresh parameters.
+ */
+public class RolloutPipeline implements AutoCloseable {
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "rollout");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final int maxStaleness;
+	private final PolicySnapshot snapshot;
+	private final Block source;
+	private int staleness;
+
+	/**
+	 Constructs a {@link RolloutPipeline}.
+
+	 @param snapshot     the snapshot the rollouts act on
+	 @param source       the block which is trained
+	 @param maxStaleness the number of rounds after which the snapshot is refreshed, zero to run sequentially
+	 */
+	public RolloutPipeline(PolicySnapshot snapshot, Block source, int maxStaleness) {
+		if (maxStaleness < 0) {
+			throw new IllegalArgumentException("staleness must not be negative: " + maxStaleness);
+		}
+		this.snapshot = snapshot;
+		this.source = source;
+		this.maxStaleness = maxStaleness;
+		snapshot.copyFrom(source);
+	}
+
+	/**
+	 Runs one round of the pipeline.
+
+	 @param rollout the game to play against the snapshot
+	 @param update  the updates for the previously played game
+	 @return the result of the rollout
+	 */
+	public <T> T run(Callable<T> rollout, Runnable update) {
+		if (maxStaleness == 0) {
+			update.run();
+			snapshot.copyFrom(source);
+			return join(executor.submit(rollout));
+		}
+		if (++staleness >= maxStaleness) {
+			snapshot.copyFrom(source);
+			staleness = 0;
+		}
+		final Future<T> future = executor.submit(rollout);
+		try {
+			update.run();
+		} catch (RuntimeException e) {
+			join(future);
+			throw e;
+		}
+		return join(future);
+	}
+
+	private static <T> T join(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for the rollout", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("rollout failed", e.getCause());
+		}
+	}
+
+	public PolicySnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,75 @@
+package com.itth.moonlander.training;
+
+import java.util.concurrent.ConcurrentHashMap;
+import ai.djl.modality.rl.agent.QAgent;
+import ai.djl.ndarray.*;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.Trainer;
+import ai.djl.training.listener.TrainingListener;
+import ai.djl.training.listener.TrainingListener.BatchData;
+import com.codahale.metrics.Timer;
+
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
+
+/**
+ A {@link QAgent} which can also train on a {@link PreparedBatch}, so no stacking happens on the learner thread.
+
+ <p>The target of every step is its reward plus the discounted best post action value, the latter left out for
+ steps which ended the game. Post action values are evaluated without gradient in one pass over all
+ {@code batchSize * actionCount} rows.
+ */
+public class StackedQAgent extends QAgent {
+	private static final Timer trainBatchTimer = TrainingMetrics.timer(TrainingMetrics.TRAIN_BATCH);
+	private final float rewardDiscount;
+	private final Trainer trainer;
+
+	/**
+	 Constructs a {@link StackedQAgent}.
+
+	 @param trainer        the trainer for the model to learn
+	 @param rewardDiscount the reward discount to apply to rewards from future states
+	 */
+	public StackedQAgent(Trainer trainer, float rewardDiscount) {
+		super(trainer, rewardDiscount);
+		this.trainer = trainer;
+		this.rewardDiscount = rewardDiscount;
+	}
+
+	/**
+	 Collects the gradient of one prepared batch, {@link Trainer#step()} is left to the caller.
+	 */
+	public void trainBatch(PreparedBatch batch) {
+		try (Timer.Context ignored = trainBatchTimer.time()) {
+			collect(batch);
+		}
+	}
+
+	private void collect(PreparedBatch batch) {
+		final BatchData batchData =
+				new BatchData(null, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+		final TrainingEvents.Forward forward = new TrainingEvents.Forward();
+		forward.begin();
+		final NDArray postValues = trainer.evaluate(batch.getPostInput()).singletonOrThrow()
+				.reshape(batch.getBatchSize(), batch.getActionCount())
+				.max(new int[]{1});
+		final NDArray target = batch.getRewards().reshape(-1)
+				.add(postValues.mul(rewardDiscount).mul(batch.getNotDone()));
+		try (GradientCollector collector = trainer.newGradientCollector()) {
+			final NDArray value = trainer.forward(batch.getPreInput()).singletonOrThrow().reshape(-1);
+			final NDArray lossValue = trainer.getLoss().evaluate(new NDList(target), new NDList(value));
+			forward.batchSize = batch.getBatchSize();
+			forward.commit();
+			final TrainingEvents.Backward backward = new TrainingEvents.Backward();
+			backward.begin();
+			collector.backward(lossValue);
+			backward.batchSize = batch.getBatchSize();
+			backward.commit();
+			batchData.getLabels().put(target.getDevice(), new NDList(target));
+			batchData.getPredictions().put(value.getDevice(), new NDList(value));
+		}
+		for (TrainingListener listener : trainer.getTrainingListeners()) {
+			listener.onTrainingBatch(trainer, batchData);
+		}
+	}
+}
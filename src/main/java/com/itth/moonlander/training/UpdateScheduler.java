@@ -0,0 +1,231 @@
+package com.itth.moonlander.training;
+
+import java.util.function.Supplier;
+import ai.djl.modality.rl.agent.RlAgent;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.training.Trainer;
+import com.codahale.metrics.Timer;
+
+import com.itth.moonlander.metrics.TrainingEvents;
+import com.itth.moonlander.metrics.TrainingMetrics;
+
+/**
+ Schedules gradient updates by the number of simulated environment steps instead of by finished games.
+
+ <p>Every {@code stepsPerInterval} environment steps trigger {@code updatesPerInterval} updates, so the update to
+ data ratio stays the same for short and long episodes. With an accumulation greater than one every update joins
+ that many replay batches before {@link RlAgent#trainBatch(Step[])}, thus the optimizer applies the gradient of all
+ of them in a single {@link Trainer#step()}.
+ */
+public class UpdateScheduler {
+	private static final Timer trainBatchTimer = TrainingMetrics.timer(TrainingMetrics.TRAIN_BATCH);
+	private static final Timer trainerStepTimer = TrainingMetrics.timer(TrainingMetrics.TRAINER_STEP);
+	private final int accumulation;
+	private final int minUpdates;
+	private final int stepsPerInterval;
+	private final int updatesPerInterval;
+	private long environmentSteps;
+	private long pendingSteps;
+	private long updates;
+
+	private UpdateScheduler(Builder builder) {
+		this.updatesPerInterval = builder.updatesPerInterval;
+		this.stepsPerInterval = builder.stepsPerInterval;
+		this.accumulation = builder.accumulation;
+		this.minUpdates = builder.minUpdates;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 The former behaviour, exactly one update per finished game.
+	 */
+	public static UpdateScheduler perGame() {
+		return builder().setUpdatesPerInterval(1).setStepsPerInterval(Integer.MAX_VALUE).optMinUpdates(1).build();
+	}
+
+	/**
+	 Adds the steps of a finished game and returns the number of updates which are due now.
+
+	 <p>Updates beyond the ratio which {@code minUpdates} forces after a short game are charged against the steps of
+	 the following games, so the update to data ratio still holds over many games.
+
+	 @param steps the environment steps simulated since the last call
+	 @return the number of updates to run, at least {@code minUpdates} unless no steps were added
+	 */
+	public int addSteps(int steps) {
+		if (steps == 0) {
+			return 0;
+		}
+		environmentSteps += steps;
+		pendingSteps += steps;
+		final long intervals = pendingSteps > 0 ? pendingSteps / stepsPerInterval : 0;
+		pendingSteps -= intervals * stepsPerInterval;
+		final long due = intervals * updatesPerInterval;
+		if (due >= minUpdates) {
+			return Math.toIntExact(due);
+		}
+		// Owed steps, negative until later games paid for the extra updates
+		pendingSteps -= (minUpdates - due) * stepsPerInterval / updatesPerInterval;
+		return minUpdates;
+	}
+
+	/**
+	 Returns the next batch for one update, joining {@code accumulation} batches of the source if configured.
+	 */
+	public Step[] nextBatch(Supplier<Step[]> source) {
+		if (accumulation == 1) {
+			return source.get();
+		}
+		final Step[][] batches = new Step[accumulation][];
+		int length = 0;
+		for (int i = 0; i < accumulation; i++) {
+			batches[i] = source.get();
+			length += batches[i].length;
+		}
+		final Step[] joined = new Step[length];
+		int offset = 0;
+		for (Step[] batch : batches) {
+			System.arraycopy(batch, 0, joined, offset, batch.length);
+			offset += batch.length;
+		}
+		return joined;
+	}
+
+	/**
+	 Adds the steps of a finished game and runs all updates which are due.
+
+	 @param agent   the agent to train
+	 @param trainer the trainer of the agent's model
+	 @param steps   the environment steps simulated since the last call
+	 @param source  the replay batches to train on
+	 @return the number of updates run
+	 */
+	public int update(RlAgent agent, Trainer trainer, int steps, Supplier<Step[]> source) {
+		final Step[][] batches = prepare(steps, source);
+		train(agent, trainer, batches);
+		return batches.length;
+	}
+
+	/**
+	 Applies the collected gradients, timed as optimizer step. The update is counted by the caller.
+	 */
+	public void step(Trainer trainer) {
+		final TrainingEvents.OptimizerStep event = new TrainingEvents.OptimizerStep();
+		event.begin();
+		try (Timer.Context ignored = trainerStepTimer.time()) {
+			trainer.step();
+		}
+		event.update = updates;
+		event.commit();
+	}
+
+	/**
+	 Adds the steps of a finished game and runs the given update, including its optimizer step, as often as due.
+
+	 @param steps  the environment steps simulated since the last call
+	 @param update one update
+	 @return the number of updates run
+	 */
+	public int update(int steps, Runnable update) {
+		final int due = addSteps(steps);
+		for (int i = 0; i < due; i++) {
+			update.run();
+			updates++;
+		}
+		return due;
+	}
+
+	/**
+	 Adds the steps of a finished game and samples the batches of all updates which are due, so the replay buffer
+	 is free again before {@link #train(RlAgent, Trainer, Step[][])} runs. The batches have to be trained before the
+	 next ones are sampled, steps dropped meanwhile by the playing thread stay valid until then, see
+	 {@link ResizableReplayBuffer}.
+	 */
+	public Step[][] prepare(int steps, Supplier<Step[]> source) {
+		final Step[][] batches = new Step[addSteps(steps)][];
+		for (int i = 0; i < batches.length; i++) {
+			batches[i] = nextBatch(source);
+		}
+		return batches;
+	}
+
+	/**
+	 Runs one update per prepared batch.
+	 */
+	public void train(RlAgent agent, Trainer trainer, Step[][] batches) {
+		for (Step[] batch : batches) {
+			final TrainingEvents.TrainBatch trainEvent = new TrainingEvents.TrainBatch();
+			trainEvent.begin();
+			try (Timer.Context ignored = trainBatchTimer.time()) {
+				agent.trainBatch(batch);
+			}
+			trainEvent.batchSize = batch.length;
+			trainEvent.commit();
+			step(trainer);
+			updates++;
+		}
+	}
+
+	public int getAccumulation() {
+		return accumulation;
+	}
+
+	public long getEnvironmentSteps() {
+		return environmentSteps;
+	}
+
+	public long getUpdates() {
+		return updates;
+	}
+
+	/**
+	 Updates per simulated environment step, the compute spent per sample.
+	 */
+	public float getUpdateToDataRatio() {
+		return environmentSteps == 0 ? 0 : (float)updates / environmentSteps;
+	}
+
+	public static final class Builder {
+		private int accumulation = 1;
+		private int minUpdates = 0;
+		private int stepsPerInterval = 1;
+		private int updatesPerInterval = 1;
+
+		private Builder() {
+		}
+
+		public Builder setUpdatesPerInterval(int updatesPerInterval) {
+			this.updatesPerInterval = updatesPerInterval;
+			return this;
+		}
+
+		public Builder setStepsPerInterval(int stepsPerInterval) {
+			this.stepsPerInterval = stepsPerInterval;
+			return this;
+		}
+
+		public Builder optAccumulation(int accumulation) {
+			this.accumulation = accumulation;
+			return this;
+		}
+
+		/**
+		 Sets the number of updates run per finished game even if the game was shorter than one interval, the extra
+		 updates are charged against the steps of the following games.
+		 */
+		public Builder optMinUpdates(int minUpdates) {
+			this.minUpdates = minUpdates;
+			return this;
+		}
+
+		public UpdateScheduler build() {
+			if (updatesPerInterval < 1 || stepsPerInterval < 1 || accumulation < 1 || minUpdates < 0) {
+				throw new IllegalArgumentException("updates, steps and accumulation must be positive");
+			}
+			return new UpdateScheduler(this);
+		}
+	}
+}
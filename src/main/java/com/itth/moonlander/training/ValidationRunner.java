@@ -0,0 +1,278 @@
+package com.itth.moonlander.training;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import ai.djl.Device;
+import ai.djl.Model;
+import ai.djl.ndarray.BaseNDManager;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import org.apache.logging.log4j.*;
+
+/**
+ Plays validation games concurrently on snapshots of the trained parameters while training goes on.
+
+ <p>{@link #validate(Block)} copies the parameters into a candidate snapshot on the caller's thread, which is the
+ only moment the trained block must not be updated. Each worker then copies the candidate into its own
+ {@link PolicySnapshot} and plays its share of the games greedily on a fresh headless environment, so workers share
+ no arrays with the trainer or each other. The result reports the win rate with its Wilson score interval, a game
+ counting as won by the rules of its {@link OutcomeEnv}, as in the trainers. A worker which fails logs the error and counts its
+ remaining games as lost, so it does not discard the games of the others.
+
+ <p>A new validation waits for the previous one, so the candidate can be saved, see {@link #save(Path, String)},
+ until the next validation starts.
+ */
+public class ValidationRunner implements AutoCloseable {
+	protected final static Logger logger = LogManager.getLogger(ValidationRunner.class);
+	/** The normal quantile of the 95 % confidence interval. */
+	private static final double Z = 1.96;
+	private final PolicySnapshot candidate;
+	private final Function<BaseNDManager, OutcomeEnv> environment;
+	private final ExecutorService executor;
+	private final int games;
+	private final PolicySnapshot[] workers;
+	private CompletableFuture<Result> pending;
+
+	private ValidationRunner(Builder builder) {
+		environment = builder.environment;
+		games = builder.games;
+		candidate = new PolicySnapshot(builder.blockFactory, builder.device, builder.inputShapes);
+		workers = new PolicySnapshot[Math.min(builder.threads, games)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new PolicySnapshot(builder.blockFactory, builder.device, builder.inputShapes);
+		}
+		final AtomicInteger threads = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(workers.length, runnable -> {
+			final Thread thread = new Thread(runnable, "validation-" + threads.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 Starts validating the current parameters of the given block, after waiting for the previous validation.
+
+	 @param source the trained block, built by the factory of this runner
+	 @return the result once all games are played
+	 */
+	public synchronized CompletableFuture<Result> validate(Block source) {
+		if (pending != null) {
+			pending.join();
+		}
+		candidate.copyFrom(source);
+		@SuppressWarnings("unchecked")
+		final CompletableFuture<Result>[] shares = new CompletableFuture[workers.length];
+		for (int i = 0; i < workers.length; i++) {
+			final PolicySnapshot worker = workers[i];
+			final int share = games / workers.length + (i < games % workers.length ? 1 : 0);
+			shares[i] = CompletableFuture.supplyAsync(() -> play(worker, share), executor);
+		}
+		pending = CompletableFuture.allOf(shares).thenApply(ignored -> {
+			Result result = new Result(0, 0, 0);
+			for (CompletableFuture<Result> share : shares) {
+				result = result.add(share.join());
+			}
+			return result;
+		});
+		return pending;
+	}
+
+	/**
+	 Saves the parameters of the last validated candidate like {@link Model#save(Path, String)}.
+	 */
+	public synchronized void save(Path modelPath, String name) throws IOException {
+		if (pending != null) {
+			pending.join();
+		}
+		try (Model model = Model.newInstance(name)) {
+			model.setBlock(candidate.getBlock());
+			model.save(modelPath, name);
+		}
+	}
+
+	public int getGames() {
+		return games;
+	}
+
+	/**
+	 Waits for a running validation and frees the snapshots.
+	 */
+	@Override
+	public synchronized void close() {
+		if (pending != null) {
+			pending.exceptionally(e -> null).join();
+		}
+		executor.shutdown();
+		candidate.close();
+		for (PolicySnapshot worker : workers) {
+			worker.close();
+		}
+	}
+
+	private Result play(PolicySnapshot worker, int share) {
+		int wins = 0;
+		float reward = 0;
+		// Closes the manager also if a wrapping environment keeps the wrapped one open
+		try (BaseNDManager manager = (BaseNDManager)NDManager.newBaseManager();
+				OutcomeEnv env = environment.apply(manager)) {
+			worker.copyFrom(candidate.getBlock());
+			for (int i = 0; i < share; i++) {
+				final float result = env.runEnvironment(worker.agent(), false);
+				reward += result;
+				if (env.isWon()) {
+					wins++;
+				}
+			}
+		} catch (RuntimeException e) {
+			logger.error("validation games failed, counting the remaining ones as lost", e);
+		}
+		return new Result(share, wins, reward);
+	}
+
+	/**
+	 The outcome of the validation games.
+	 */
+	public static final class Result {
+		private final int games;
+		private final float reward;
+		private final int wins;
+
+		private Result(int games, int wins, float reward) {
+			this.games = games;
+			this.wins = wins;
+			this.reward = reward;
+		}
+
+		private Result add(Result other) {
+			return new Result(games + other.games, wins + other.wins, reward + other.reward);
+		}
+
+		public int getGames() {
+			return games;
+		}
+
+		public int getWins() {
+			return wins;
+		}
+
+		public float getWinRate() {
+			return games == 0 ? 0 : (float)wins / games;
+		}
+
+		public float getMeanReward() {
+			return games == 0 ? 0 : reward / games;
+		}
+
+		/**
+		 Returns the lower bound of the 95 % Wilson score interval of the win rate.
+		 */
+		public float getLower() {
+			return (float)Math.max(0, center() - halfWidth());
+		}
+
+		/**
+		 Returns the upper bound of the 95 % Wilson score interval of the win rate.
+		 */
+		public float getUpper() {
+			return (float)Math.min(1, center() + halfWidth());
+		}
+
+		private double center() {
+			if (games == 0) {
+				return 0.5;
+			}
+			return (getWinRate() + Z * Z / (2 * games)) / (1 + Z * Z / games);
+		}
+
+		private double halfWidth() {
+			if (games == 0) {
+				return 0.5;
+			}
+			final double p = getWinRate();
+			return Z * Math.sqrt(p * (1 - p) / games + Z * Z / (4.0 * games * games)) / (1 + Z * Z / games);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%.3f [%.3f, %.3f] of %d games, mean reward %.3f", getWinRate(), getLower(), getUpper(), games, getMeanReward());
+		}
+	}
+
+	public static final class Builder {
+		private Supplier<Block> blockFactory;
+		private Device device = Device.cpu();
+		private Function<BaseNDManager, OutcomeEnv> environment;
+		private int games = 64;
+		private Shape[] inputShapes;
+		private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+		private Builder() {}
+
+		/**
+		 Sets the factory which built the trained block.
+		 */
+		public Builder setBlockFactory(Supplier<Block> blockFactory) {
+			this.blockFactory = blockFactory;
+			return this;
+		}
+
+		/**
+		 Sets the shapes the trained block was initialized with.
+		 */
+		public Builder setInputShapes(Shape... inputShapes) {
+			this.inputShapes = inputShapes;
+			return this;
+		}
+
+		/**
+		 Sets the factory of the headless environments, one per worker and validation, freed with their manager. The
+		 environments tell whether a game was won.
+		 */
+		public Builder setEnvironment(Function<BaseNDManager, OutcomeEnv> environment) {
+			this.environment = environment;
+			return this;
+		}
+
+		/**
+		 Sets the games per validation, 64 by default.
+		 */
+		public Builder optGames(int games) {
+			this.games = games;
+			return this;
+		}
+
+		/**
+		 Sets the number of concurrent games, half the processors by default.
+		 */
+		public Builder optThreads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		public Builder optDevice(Device device) {
+			this.device = device;
+			return this;
+		}
+
+		public ValidationRunner build() {
+			if (blockFactory == null || inputShapes == null || environment == null) {
+				throw new IllegalArgumentException("block factory, input shapes and environment must be set");
+			}
+			if (games <= 0 || threads <= 0) {
+				throw new IllegalArgumentException("games and threads must be positive");
+			}
+			return new ValidationRunner(this);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 module com.itth.moonlander {
 	requires org.apache.logging.log4j;
 	requires java.desktop;
+	requires jdk.jfr;
 	requires org.slf4j;
 	requires javafx.graphics;
 	requires javafx.controls;
@@ -8,6 +9,7 @@ module com.itth.moonlander {
 	requires org.apache.commons.collections4;
 	requires com.itth.os.realtimechart;
 	requires com.codahale.metrics;
+	requires com.codahale.metrics.jmx;
 	requires deeplearning4j.nn;
 	requires nd4j.api;
 	requires guava;
@@ -19,5 +21,6 @@ module com.itth.moonlander {
 	requires ai.djl.pytorch_engine;
 	exports com.itth.breakout;
 	exports com.itth.moonlander;
+	exports com.itth.moonlander.metrics;
 	exports com.itth.moonlander.samples;
 }
\ No newline at end of file
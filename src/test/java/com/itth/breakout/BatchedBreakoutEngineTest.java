@@ -0,0 +1,100 @@
+package com.itth.breakout;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+import static com.itth.breakout.BreakoutEngine.*;
+import static org.junit.Assert.*;
+
+/**
+ Plays 200 seeded games at once with a paddle which follows the ball, from the default time step up to 50 times it.
+
+ <p>The swept collision must neither let the ball tunnel through the paddle nor bounce it off thin air, so a
+ tracking paddle wins every game at every time step, while a paddle that does not move loses some.
+ */
+public class BatchedBreakoutEngineTest {
+	private static final int GAMES = 200;
+
+	@Test
+	public void trackingPaddleWinsEveryGame() {
+		for (double dt : new double[]{DT, 10 * DT, 50 * DT}) {
+			final BatchedBreakoutEngine engine = play(dt, BatchedBreakoutEngineTest::track);
+			for (int game = 0; game < GAMES; game++) {
+				assertEquals("score of game " + game + " at dt " + dt, WINNING_SCORE, engine.getScore(game));
+				assertTrue(engine.getBallY(game) + BALL_RADIUS < SCENE_HEIGHT);
+			}
+		}
+	}
+
+	@Test
+	public void idlePaddleLosesSomeGames() {
+		final BatchedBreakoutEngine engine = play(DT, (observations, moves) -> {});
+		int lost = 0;
+		for (int game = 0; game < GAMES; game++) {
+			if (engine.getScore(game) < WINNING_SCORE) {
+				lost++;
+			}
+		}
+		assertTrue("all games won without moving", lost > 0);
+	}
+
+	@Test
+	public void finishedGamesStayUnchanged() {
+		final BatchedBreakoutEngine engine = play(10 * DT, BatchedBreakoutEngineTest::track);
+		final double[] ballX = new double[GAMES];
+		final double[] ballY = new double[GAMES];
+		final double[] paddleX = new double[GAMES];
+		for (int game = 0; game < GAMES; game++) {
+			ballX[game] = engine.getBallX(game);
+			ballY[game] = engine.getBallY(game);
+			paddleX[game] = engine.getPaddleX(game);
+		}
+		final int[] moves = new int[GAMES];
+		Arrays.fill(moves, 2);
+		engine.step(moves);
+		for (int game = 0; game < GAMES; game++) {
+			assertEquals(ballX[game], engine.getBallX(game), 0);
+			assertEquals(ballY[game], engine.getBallY(game), 0);
+			assertEquals(paddleX[game], engine.getPaddleX(game), 0);
+			assertEquals(WINNING_SCORE, engine.getScore(game));
+		}
+	}
+
+	/**
+	 Plays {@link #GAMES} games seeded alike for every time step until all are done.
+	 */
+	private static BatchedBreakoutEngine play(double dt, BatchedBreakoutEngine.Policy policy) {
+		final BatchedBreakoutEngine engine = new BatchedBreakoutEngine(GAMES, new Random(42));
+		engine.setDt(dt);
+		final float[] observations = new float[GAMES];
+		final int[] moves = new int[GAMES];
+		// Ten rounds from the top to the paddle and back take about 20 s, a game running far longer is stuck
+		final long maxSteps = (long)(60 / dt);
+		for (long step = 0; !allDone(engine); step++) {
+			assertTrue("games still running after " + step + " steps at dt " + dt, step < maxSteps);
+			engine.observe(observations);
+			policy.act(observations, moves);
+			engine.step(moves);
+		}
+		return engine;
+	}
+
+	/**
+	 Moves the paddle center towards the ball, the observation is the sign of the paddle center minus the ball.
+	 */
+	private static void track(float[] observations, int[] moves) {
+		for (int i = 0; i < moves.length; i++) {
+			moves[i] = observations[i] > 0 ? 1 : observations[i] < 0 ? 2 : 0;
+		}
+	}
+
+	private static boolean allDone(BatchedBreakoutEngine engine) {
+		for (int game = 0; game < engine.size(); game++) {
+			if (!engine.isDone(game)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
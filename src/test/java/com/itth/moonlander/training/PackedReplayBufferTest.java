@@ -0,0 +1,244 @@
+package com.itth.moonlander.training;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import ai.djl.modality.rl.ActionSpace;
+import ai.djl.modality.rl.env.RlEnv.Step;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ Checks the slots, counts and Fenwick tree of {@link PackedReplayBuffer} against a plain deque of the held keys.
+
+ <p>The codec decodes a key into a step which only remembers the key and its manager, the managers only remember
+ whether they were closed, so no engine is needed.
+ */
+public class PackedReplayBufferTest {
+	private static final int SAMPLES = 100_000;
+	private static final PackedReplayBuffer.Codec CODEC = new PackedReplayBuffer.Codec() {
+		@Override
+		public long encode(Step step) {
+			return ((KeyStep)step).key;
+		}
+
+		@Override
+		public Step decode(long key, NDManager manager) {
+			return new KeyStep(key, manager);
+		}
+	};
+
+	@Test
+	public void equalKeysShareOneSlot() {
+		final PackedReplayBuffer buffer = new PackedReplayBuffer(1, 16, CODEC, TrackingManager.create());
+		final Step step = buffer.add(1);
+		buffer.add(2);
+		assertSame(step, buffer.add(1));
+		assertSame(step, buffer.add(1));
+		assertEquals(4, buffer.size());
+		assertEquals(2, buffer.getDistinct());
+		assertEquals(3, buffer.getCount(1));
+		assertEquals(1, buffer.getCount(2));
+		assertEquals(0, buffer.getCount(3));
+		// A lookup neither adds a transition nor a slot
+		assertSame(step, buffer.get(1));
+		assertEquals(4, buffer.size());
+		assertEquals(0, buffer.getCount(3));
+	}
+
+	@Test
+	public void samplesKeysInProportionToTheirCounts() {
+		final PackedReplayBuffer buffer = new PackedReplayBuffer(SAMPLES, 16, CODEC, TrackingManager.create());
+		final Deque<Long> held = new ArrayDeque<>();
+		for (long key = 1; key <= 4; key++) {
+			for (int i = 0; i < key; i++) {
+				buffer.add(key);
+				held.add(key);
+			}
+		}
+		assertFrequencies(buffer, held);
+	}
+
+	@Test
+	public void evictionAndCompactionKeepCountsConsistent() {
+		final int capacity = 5000;
+		final PackedReplayBuffer buffer = new PackedReplayBuffer(SAMPLES, capacity, CODEC, TrackingManager.create());
+		final Deque<Long> held = new ArrayDeque<>();
+		final Random random = new Random(42);
+		// Many distinct keys fill and grow the slots, then few frequent ones let compaction reuse them
+		for (int i = 0; i < 200_000; i++) {
+			final long key = i < 100_000 ? random.nextInt(3000) : random.nextInt(10) == 0 ? 5000 + random.nextInt(50) : 7;
+			buffer.add(key);
+			held.add(key);
+			if (held.size() > capacity) {
+				held.removeFirst();
+			}
+		}
+		final Map<Long, Integer> counts = count(held);
+		assertEquals(capacity, buffer.size());
+		assertEquals(counts.size(), buffer.getDistinct());
+		for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+			assertEquals("count of " + entry.getKey(), (int)entry.getValue(), buffer.getCount(entry.getKey()));
+		}
+		assertFrequencies(buffer, held);
+	}
+
+	@Test
+	public void shrinkingDropsTheOldestTransitions() {
+		final PackedReplayBuffer buffer = new PackedReplayBuffer(SAMPLES, 10, CODEC, TrackingManager.create());
+		for (long key = 0; key < 10; key++) {
+			buffer.add(key);
+		}
+		buffer.setCapacity(4);
+		assertEquals(4, buffer.getCapacity());
+		assertEquals(4, buffer.size());
+		for (long key = 0; key < 10; key++) {
+			assertEquals("count of " + key, key < 6 ? 0 : 1, buffer.getCount(key));
+		}
+		// The ring continues with the oldest kept transition
+		buffer.add(10);
+		assertEquals(4, buffer.size());
+		assertEquals(0, buffer.getCount(6));
+		assertEquals(1, buffer.getCount(10));
+		final Deque<Long> held = new ArrayDeque<>();
+		for (long key = 7; key <= 10; key++) {
+			held.add(key);
+		}
+		assertFrequencies(buffer, held);
+	}
+
+	@Test
+	public void compactionClosesDroppedManagersAfterRetainedBatches() {
+		final PackedReplayBuffer buffer = new PackedReplayBuffer(1, 1, CODEC, TrackingManager.create());
+		final KeyStep first = (KeyStep)buffer.add(0);
+		// Every key replaces the previous one, the slots run out and compaction drops all but the last key
+		for (long key = 1; key <= 1024; key++) {
+			buffer.add(key);
+		}
+		assertEquals(1, buffer.getDistinct());
+		for (int i = 0; i < DeferredRelease.RETAINED_BATCHES - 1; i++) {
+			buffer.getBatch();
+			assertTrue("closed after " + (i + 1) + " batches", first.manager.isOpen());
+		}
+		buffer.getBatch();
+		assertFalse(first.manager.isOpen());
+		final KeyStep last = (KeyStep)buffer.get(1024);
+		assertTrue(last.manager.isOpen());
+	}
+
+	private static Map<Long, Integer> count(Iterable<Long> keys) {
+		final Map<Long, Integer> counts = new HashMap<>();
+		for (long key : keys) {
+			counts.merge(key, 1, Integer::sum);
+		}
+		return counts;
+	}
+
+	/**
+	 Samples a batch of {@link #SAMPLES} steps and compares the share of every key with its share of the held keys.
+	 */
+	private static void assertFrequencies(PackedReplayBuffer buffer, Deque<Long> held) {
+		final Map<Long, Integer> expected = count(held);
+		final Map<Long, Integer> sampled = new HashMap<>();
+		for (Step step : buffer.getBatch()) {
+			final long key = ((KeyStep)step).key;
+			assertTrue("sampled a dropped key " + key, expected.containsKey(key));
+			sampled.merge(key, 1, Integer::sum);
+		}
+		for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+			final double share = (double)entry.getValue() / held.size();
+			final double drawn = (double)sampled.getOrDefault(entry.getKey(), 0) / SAMPLES;
+			// Five standard deviations of the drawn share
+			final double tolerance = 5 * Math.sqrt(share * (1 - share) / SAMPLES) + 1e-4;
+			assertEquals("share of " + entry.getKey(), share, drawn, tolerance);
+		}
+	}
+
+	/**
+	 A decoded transition, only its key and manager matter to the buffer.
+	 */
+	private static final class KeyStep implements Step {
+		private final long key;
+		private final NDManager manager;
+
+		private KeyStep(long key, NDManager manager) {
+			this.key = key;
+			this.manager = manager;
+		}
+
+		@Override
+		public NDList getPreObservation() {
+			return null;
+		}
+
+		@Override
+		public NDList getAction() {
+			return null;
+		}
+
+		@Override
+		public NDList getPostObservation() {
+			return null;
+		}
+
+		@Override
+		public ActionSpace getPostActionSpace() {
+			return null;
+		}
+
+		@Override
+		public NDArray getReward() {
+			return null;
+		}
+
+		@Override
+		public boolean isDone() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 A manager which creates sub managers and tracks whether it was closed, any other call fails.
+	 */
+	private static final class TrackingManager implements InvocationHandler {
+		private boolean closed;
+
+		private static NDManager create() {
+			return (NDManager)Proxy.newProxyInstance(NDManager.class.getClassLoader(), new Class<?>[]{NDManager.class}, new TrackingManager());
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			switch (method.getName()) {
+				case "newSubManager":
+					return create();
+				case "close":
+					closed = true;
+					return null;
+				case "isOpen":
+					return !closed;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return "TrackingManager" + (closed ? " (closed)" : "");
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		}
+	}
+}